@@ -18,10 +18,9 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
-import static no.nb.nna.veidemann.chrome.client.ChromeDebugProtocolBase.CLIENT_EXECUTOR_SERVICE;
-
 public abstract class BrowserClientBase<T extends BrowserPage> implements Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(BrowserClientBase.class);
 
@@ -33,7 +32,15 @@ public abstract class BrowserClientBase<T extends BrowserPage> implements Closea
 
     BrowserContext defaultContext = new BrowserContext("");
 
-    Map<String, CompletableFuture<Target>> targets = new ConcurrentHashMap<>();
+    /**
+     * Targets created by this client and targets opened by them, keyed by target id.
+     * <p>
+     * Targets belonging to other clients of the same browser are ignored, so the cost of target events for a client
+     * does not grow with the number of concurrent sessions.
+     */
+    Map<String, Target> targets = new ConcurrentHashMap<>();
+
+    Map<String, Target> targetsBySession = new ConcurrentHashMap<>();
 
     BrowserClientBase() {
     }
@@ -52,9 +59,9 @@ public abstract class BrowserClientBase<T extends BrowserPage> implements Closea
         return result;
     }
 
-    void init(ChromeDebugProtocolBase<BrowserClientBase> chromeDebugProtocol, ChromeDebugProtocolConfig config) {
+    void init(ChromeDebugProtocolBase<BrowserClientBase> chromeDebugProtocol, CdpConnection connection) {
         this.chromeDebugProtocol = chromeDebugProtocol;
-        this.protocolClient = new CdpConnection(config);
+        this.protocolClient = connection;
         checkVersion();
         try {
             List<String> contextIds = new GetBrowserContextsCmd(protocolClient).run().browserContextIds();
@@ -94,105 +101,49 @@ public abstract class BrowserClientBase<T extends BrowserPage> implements Closea
         return protocolClient.getConfig();
     }
 
-    Target getTarget(String targetId) {
-        try {
-            return targets.computeIfAbsent(targetId, k -> new CompletableFuture<>()).get();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    boolean targetExists(String targetId) {
-        return targets.containsKey(targetId) && targets.get(targetId).isDone();
-    }
-
-    CompletableFuture<Target> putTarget(Target target) {
-        CompletableFuture<Target> t = targets.computeIfAbsent(target.targetInfo.targetId(), k -> new CompletableFuture<>());
-        t.complete(target);
-        return t;
+    /**
+     * Check if a target is tracked by this client. Targets opened by a tracked target, like popups, are tracked too.
+     */
+    private boolean isOwnTarget(TargetInfo targetInfo) {
+        return targets.containsKey(targetInfo.targetId())
+                || (targetInfo.openerId() != null && targets.containsKey(targetInfo.openerId()));
     }
 
-    Target removeTarget(String targetId) {
-        Target target = null;
-        CompletableFuture<Target> t = targets.remove(targetId);
-        if (t.isDone()) {
-            try {
-                target = t.get();
-                target.initializedCallback.complete(false);
-            } catch (Exception e) {
-                LOG.error(e.getMessage(), e);
-                return null;
-            }
-        }
-        return target;
-    }
+    /*
+     * The target event handlers are called on the connection's I/O thread and must not block.
+     */
 
     void onTargetCreated(TargetInfo targetInfo) {
-        CLIENT_EXECUTOR_SERVICE.execute(() -> {
-
-            LOG.debug("New target: {}", targetInfo);
-            if (targetExists(targetInfo.targetId())) {
-                throw new IllegalStateException("Target should not exist before targetCreated");
-            }
-
-            BrowserContext context = null;
-            if (targetInfo.browserContextId() != null) {
-                context = contexts.get(targetInfo.browserContextId());
-            }
-            if (context == null) {
-                context = defaultContext;
-            }
-
-            try {
-                CompletableFuture<CdpSession> sessionFactory = null;
-                if ("page".equals(targetInfo.type()) || "background_page".equals(targetInfo.type())) {
-                    sessionFactory = protocolClient.createNewSessionClient(targetInfo);
-                }
-                Target target = new Target(targetInfo, sessionFactory);
-                putTarget(target);
-
-                if (target.initializedCallback.get()) {
-                    LOG.trace("Target is initialized: ", targetInfo);
-//            this.emit(Browser.Events.TargetCreated, target);
-//            context.emit(BrowserContext.Events.TargetCreated, target);
-                }
-            } catch (Exception e) {
-                LOG.error(e.getMessage(), e);
-                throw new RuntimeException(e);
-            }
-
-        });
+        if (!isOwnTarget(targetInfo)) {
+            LOG.trace("Ignoring target created by another client: {}", targetInfo);
+            return;
+        }
+        LOG.debug("New target: {}", targetInfo);
+        targets.computeIfAbsent(targetInfo.targetId(), Target::new).targetInfoChanged(targetInfo);
     }
 
     void onTargetDestroyed(String targetId) {
-        CLIENT_EXECUTOR_SERVICE.execute(() -> {
+        Target target = targets.remove(targetId);
+        if (target != null) {
             LOG.debug("Target destroyed: {}", targetId);
-            Target target = removeTarget(targetId);
-            // target.closedCallback();
-            try {
-                if (target != null && target.initializedCallback.get()) {
-                    //        this.emit(Browser.Events.TargetDestroyed, target);
-                    //        target.browserContext().emit(BrowserContext.Events.TargetDestroyed, target);
-                }
-            } catch (Exception e) {
-                LOG.error(e.getMessage(), e);
-                throw new RuntimeException(e);
-            }
-        });
+            target.destroyed("Target destroyed");
+        }
     }
 
     void onTargetInfoChanged(TargetInfo targetInfo) {
-        LOG.debug("Targetinfo changed: {}", targetInfo);
-        Target target = getTarget(targetInfo.targetId());
-        if (target == null) {
-            throw new IllegalStateException("Target should exist before targetInfoChanged");
+        Target target = targets.get(targetInfo.targetId());
+        if (target != null) {
+            LOG.debug("Targetinfo changed: {}", targetInfo);
+            target.targetInfoChanged(targetInfo);
         }
-        String previousURL = target.targetInfo.url();
-        boolean wasInitialized = target.initializedCallback.isInitialized();
-        target.targetInfoChanged(targetInfo);
-        if (wasInitialized && !previousURL.equals(targetInfo.url())) {
-//            this.emit(Browser.Events.TargetChanged, target);
-//            target.browserContext().emit(BrowserContext.Events.TargetChanged, target);
+    }
+
+    void onDetachedFromTarget(String sessionId) {
+        Target target = targetsBySession.remove(sessionId);
+        if (target != null) {
+            LOG.debug("Detached from target: {}", target.targetId);
+            targets.remove(target.targetId);
+            target.destroyed("Detached from target");
         }
     }
 
@@ -206,10 +157,9 @@ public abstract class BrowserClientBase<T extends BrowserPage> implements Closea
      */
     T createPageInContext(final String contextId, final int clientWidth, final int clientHeight) {
         try {
-            String targetId = newTarget(contextId, clientWidth, clientHeight).get().targetId();
-            Target target = getTarget(targetId);
-            CompletableFuture<T> p = target.getPage();
-            return p.get();
+            return newTarget(contextId, clientWidth, clientHeight)
+                    .thenCompose(r -> targets.computeIfAbsent(r.targetId(), Target::new).attach())
+                    .get();
         } catch (Exception e) {
             LOG.error(e.getMessage(), e);
             throw new RuntimeException(e);
@@ -248,21 +198,7 @@ public abstract class BrowserClientBase<T extends BrowserPage> implements Closea
 
         List<Target> getTargets() {
             return targets.values().stream()
-                    .filter(t -> {
-                        try {
-                            return t.isDone() && t.get().targetInfo.browserContextId().equals(id);
-                        } catch (Exception e) {
-                            return false;
-                        }
-                    })
-                    .map(t -> {
-                        try {
-                            return t.get();
-                        } catch (Exception e) {
-                            // Should never happen because of filter
-                            throw new RuntimeException(e);
-                        }
-                    })
+                    .filter(t -> t.targetInfo != null && id.equals(t.targetInfo.browserContextId()))
                     .collect(Collectors.toList());
         }
 
@@ -285,30 +221,45 @@ public abstract class BrowserClientBase<T extends BrowserPage> implements Closea
         }
     }
 
+    /**
+     * A target tracked by this client.
+     * <p>
+     * The lifecycle is a small state machine driven by command results and target events. Nothing waits on another
+     * thread, so events can be handled directly on the connection's I/O thread.
+     */
     public class Target {
-        CdpSession cdpSession;
-        TargetInfo targetInfo;
-        InitializedFuture initializedCallback = new InitializedFuture();
-        CompletableFuture<CdpSession> sessionFactory;
-        private CompletableFuture<T> page;
-
-        public Target(TargetInfo targetInfo, CompletableFuture<CdpSession> sessionFactory) {
-            this.targetInfo = targetInfo;
-            this.sessionFactory = sessionFactory;
-            if (!"page".equals(targetInfo.type()) || !"".equals(targetInfo.url())) {
-                initializedCallback.complete(true);
-            }
+        final String targetId;
+        final AtomicReference<TargetState> state = new AtomicReference<>(TargetState.CREATED);
+        final CompletableFuture<T> page = new CompletableFuture<>();
+        volatile TargetInfo targetInfo;
+        volatile CdpSession cdpSession;
+
+        Target(String targetId) {
+            this.targetId = targetId;
         }
 
-        CompletableFuture<T> getPage() {
-            if (page == null && ("page".equals(targetInfo.type()) || "background_page".equals(targetInfo.type()))) {
-                page = new CompletableFuture<>();
-                CLIENT_EXECUTOR_SERVICE.execute(() -> {
-                    sessionFactory.thenAccept(s -> {
-                        cdpSession = s;
-                        page.complete(newPageSession(s));
-                        initializedCallback.complete(true);
-                    });
+        /**
+         * Attach to the target and create a page session for it. Only the first call attaches.
+         *
+         * @return a future completed with the page session
+         */
+        CompletableFuture<T> attach() {
+            if (state.compareAndSet(TargetState.CREATED, TargetState.ATTACHING)) {
+                protocolClient.createNewSessionClient(targetId).whenComplete((session, error) -> {
+                    if (error != null) {
+                        targets.remove(targetId);
+                        state.set(TargetState.DESTROYED);
+                        page.completeExceptionally(error);
+                        return;
+                    }
+                    cdpSession = session;
+                    targetsBySession.put(session.getSessionId(), this);
+                    if (state.compareAndSet(TargetState.ATTACHING, TargetState.ATTACHED)) {
+                        page.complete(newPageSession(session));
+                    } else {
+                        targetsBySession.remove(session.getSessionId());
+                        page.completeExceptionally(new ClientClosedException("Target " + targetId + " was destroyed"));
+                    }
                 });
             }
             return page;
@@ -316,21 +267,22 @@ public abstract class BrowserClientBase<T extends BrowserPage> implements Closea
 
         void targetInfoChanged(TargetInfo targetInfo) {
             this.targetInfo = targetInfo;
+        }
 
-            if (!initializedCallback.isInitialized()
-                    && (!"page".equals(this.targetInfo.type()) || !this.targetInfo.url().isEmpty())) {
-                this.initializedCallback.complete(true);
+        void destroyed(String reason) {
+            state.set(TargetState.DESTROYED);
+            if (cdpSession != null) {
+                targetsBySession.remove(cdpSession.getSessionId());
             }
+            page.completeExceptionally(new ClientClosedException(reason));
         }
-    }
 
-    static class InitializedFuture extends CompletableFuture<Boolean> {
-        public boolean isInitialized() {
-            try {
-                return isDone() && get().equals(Boolean.TRUE);
-            } catch (Exception e) {
-                return false;
-            }
+        public TargetState getState() {
+            return state.get();
         }
     }
+
+    public enum TargetState {
+        CREATED, ATTACHING, ATTACHED, DESTROYED
+    }
 }
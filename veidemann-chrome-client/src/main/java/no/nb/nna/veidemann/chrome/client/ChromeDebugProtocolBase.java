@@ -1,18 +1,40 @@
 package no.nb.nna.veidemann.chrome.client;
 
-import java.util.ArrayList;
+import no.nb.nna.veidemann.chrome.client.ws.CdpConnection;
+
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class ChromeDebugProtocolBase<T extends BrowserClientBase> implements AutoCloseable {
     static final ExecutorService CLIENT_EXECUTOR_SERVICE = Executors.newCachedThreadPool();
-    List<T> clients = new ArrayList<>();
+    List<T> clients = new CopyOnWriteArrayList<>();
 
     T connect(ChromeDebugProtocolConfig config, T browser) {
-        browser.init(this, config);
-        clients.add(browser);
-        return browser;
+        try {
+            return connectAsync(config, browser).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    CompletableFuture<T> connectAsync(ChromeDebugProtocolConfig config, T browser) {
+        return CdpConnection.connect(config).thenApplyAsync(connection -> {
+            try {
+                browser.init(this, connection);
+            } catch (RuntimeException e) {
+                connection.dispose();
+                throw e;
+            }
+            clients.add(browser);
+            return browser;
+        }, CLIENT_EXECUTOR_SERVICE);
     }
 
     @Override
@@ -28,7 +28,18 @@ public class ChromeDebugProtocolConfig {
     private int maxConnectionAttempts = 10;
     private long protocolTimeoutMs = 5000;
     private long reconnectDelay = 2000;
+    private long maxReconnectDelay = 30000;
+    private int circuitBreakerFailureThreshold = 5;
+    private long circuitBreakerOpenMs = 30000;
+    private long endpointCacheTtlMs = 60000;
+    private boolean targetDiscovery = false;
+    private int streamChunkSize = 1024 * 1024;
+    private int streamReadAhead = 2;
     private int workerThreads = 8;
+    private int eventQueueSize = 10000;
+    private int outboundLowWaterMark = 256 * 1024;
+    private int outboundHighWaterMark = 1024 * 1024;
+    private long maxPendingOutboundBytes = 64L * 1024 * 1024;
 
     /**
      * Construct a new ChromeDebugProtocolConfig.
@@ -38,6 +49,7 @@ public class ChromeDebugProtocolConfig {
      */
     public ChromeDebugProtocolConfig(String host, int port) {
         this.host = Objects.requireNonNull(host, "Host must be set");
+        this.port = port;
     }
 
     /**
@@ -93,16 +105,147 @@ public class ChromeDebugProtocolConfig {
         return this;
     }
 
+    /**
+     * Set the base delay between connection attempts.
+     * <p>
+     * The delay doubles for each failed attempt up to the max reconnect delay. The actual delay is a random value
+     * between zero and the computed delay, so that clients reconnecting to the same browser are spread out.
+     *
+     * @param reconnectDelay the base delay in milliseconds
+     * @return this object for chaining
+     */
     public ChromeDebugProtocolConfig withReconnectDelay(long reconnectDelay) {
         this.reconnectDelay = reconnectDelay;
         return this;
     }
 
+    /**
+     * Set the upper bound for the delay between connection attempts.
+     *
+     * @param maxReconnectDelay the max delay in milliseconds
+     * @return this object for chaining
+     */
+    public ChromeDebugProtocolConfig withMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+        return this;
+    }
+
+    /**
+     * Set the circuit breaker parameters for browser endpoints.
+     * <p>
+     * After {@code failureThreshold} consecutive failed connection attempts to an endpoint, connections to it fail
+     * immediately for {@code openMs} milliseconds before a new attempt is let through. The breaker is shared by all
+     * clients connecting to the same endpoint.
+     *
+     * @param failureThreshold number of consecutive failures before the breaker opens
+     * @param openMs           how long the breaker stays open
+     * @return this object for chaining
+     */
+    public ChromeDebugProtocolConfig withCircuitBreaker(int failureThreshold, long openMs) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be at least 1");
+        }
+        this.circuitBreakerFailureThreshold = failureThreshold;
+        this.circuitBreakerOpenMs = openMs;
+        return this;
+    }
+
+    /**
+     * Set how long a websocket endpoint looked up from '/json/version' is reused.
+     *
+     * @param endpointCacheTtlMs the time to live in milliseconds
+     * @return this object for chaining
+     */
+    public ChromeDebugProtocolConfig withEndpointCacheTtlMs(long endpointCacheTtlMs) {
+        this.endpointCacheTtlMs = endpointCacheTtlMs;
+        return this;
+    }
+
     public ChromeDebugProtocolConfig withWorkerThreads(int workerThreads) {
         this.workerThreads = workerThreads;
         return this;
     }
 
+    /**
+     * Set the maximum number of events waiting to be delivered to the listeners of a session.
+     * <p>
+     * If the listeners fall this far behind, the session is closed rather than losing events.
+     *
+     * @param eventQueueSize the capacity of the event queue for each session
+     * @return this object for chaining
+     */
+    public ChromeDebugProtocolConfig withEventQueueSize(int eventQueueSize) {
+        this.eventQueueSize = eventQueueSize;
+        return this;
+    }
+
+    /**
+     * Set the water marks for the socket's outbound buffer.
+     * <p>
+     * When more than the high water mark is waiting to be written to the socket, messages are held back in the send
+     * queue until the buffer is drained below the low water mark.
+     *
+     * @param low  the low water mark in bytes
+     * @param high the high water mark in bytes
+     * @return this object for chaining
+     */
+    public ChromeDebugProtocolConfig withOutboundWaterMarks(int low, int high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("Water marks must satisfy 0 <= low <= high");
+        }
+        this.outboundLowWaterMark = low;
+        this.outboundHighWaterMark = high;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of bytes waiting to be sent on a connection before new commands fail.
+     *
+     * @param maxPendingOutboundBytes the limit in bytes
+     * @return this object for chaining
+     */
+    public ChromeDebugProtocolConfig withMaxPendingOutboundBytes(long maxPendingOutboundBytes) {
+        this.maxPendingOutboundBytes = maxPendingOutboundBytes;
+        return this;
+    }
+
+    /**
+     * Enable target discovery.
+     * <p>
+     * Pages created by a client are tracked without discovery. With discovery enabled, targets opened by those pages,
+     * like popups, are tracked too. The browser sends discovery events for all targets to every connection, so this
+     * adds overhead for each session sharing the browser.
+     *
+     * @param targetDiscovery true to enable target discovery
+     * @return this object for chaining
+     */
+    public ChromeDebugProtocolConfig withTargetDiscovery(boolean targetDiscovery) {
+        this.targetDiscovery = targetDiscovery;
+        return this;
+    }
+
+    /**
+     * Set how protocol streams are read.
+     * <p>
+     * Each chunk is sent base64-encoded in one websocket frame, so the chunk size must be well below the frame limit
+     * of 8MB. Up to {@code readAhead} chunks are requested ahead of the chunk being read.
+     *
+     * @param chunkSize max number of bytes read per request
+     * @param readAhead number of requests in flight
+     * @return this object for chaining
+     */
+    public ChromeDebugProtocolConfig withStreamReading(int chunkSize, int readAhead) {
+        if (chunkSize < 1 || chunkSize > 4 * 1024 * 1024) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and 4MB");
+        }
+        if (readAhead < 1) {
+            throw new IllegalArgumentException("Read ahead must be at least 1");
+        }
+        this.streamChunkSize = chunkSize;
+        this.streamReadAhead = readAhead;
+        return this;
+    }
+
     public String getHost() {
         return host;
     }
@@ -131,10 +274,54 @@ public class ChromeDebugProtocolConfig {
         return reconnectDelay;
     }
 
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    public long getCircuitBreakerOpenMs() {
+        return circuitBreakerOpenMs;
+    }
+
+    public long getEndpointCacheTtlMs() {
+        return endpointCacheTtlMs;
+    }
+
     public int getWorkerThreads() {
         return workerThreads;
     }
 
+    public int getEventQueueSize() {
+        return eventQueueSize;
+    }
+
+    public int getOutboundLowWaterMark() {
+        return outboundLowWaterMark;
+    }
+
+    public int getOutboundHighWaterMark() {
+        return outboundHighWaterMark;
+    }
+
+    public long getMaxPendingOutboundBytes() {
+        return maxPendingOutboundBytes;
+    }
+
+    public boolean isTargetDiscovery() {
+        return targetDiscovery;
+    }
+
+    public int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+
+    public int getStreamReadAhead() {
+        return streamReadAhead;
+    }
+
     public String getBrowserWSEndpoint() {
         return browserWSEndpoint;
     }
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2018 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a connection to the browser is refused without trying, because recent attempts to the same endpoint
+ * failed.
+ */
+public class EndpointUnavailableException extends IOException {
+
+    public EndpointUnavailableException(String message) {
+        super(message);
+    }
+}
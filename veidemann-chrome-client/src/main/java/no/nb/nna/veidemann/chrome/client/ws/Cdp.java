@@ -17,20 +17,29 @@ package no.nb.nna.veidemann.chrome.client.ws;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import io.opentracing.ActiveSpan;
 import io.opentracing.NoopActiveSpanSource;
 import io.opentracing.Tracer;
 import io.opentracing.tag.Tags;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import no.nb.nna.veidemann.chrome.client.ChromeDebugProtocolConfig;
 import no.nb.nna.veidemann.chrome.client.ClientClosedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
@@ -45,13 +54,68 @@ public abstract class Cdp implements WebSocketCallback {
 
     final static Gson GSON = new Gson();
 
+    /**
+     * Timer shared by all connections and sessions for evicting calls and event futures which are not answered in
+     * time. A tick of 10ms is more than fine grained enough for protocol timeouts measured in seconds.
+     */
+    final static HashedWheelTimer DEADLINE_TIMER =
+            new HashedWheelTimer(new DefaultThreadFactory("cdp-deadline", true), 10, TimeUnit.MILLISECONDS);
+
+    /**
+     * Pool lending threads to the serial event executors of sessions.
+     */
+    final static ExecutorService EVENT_EXECUTOR_SERVICE =
+            Executors.newCachedThreadPool(new DefaultThreadFactory("cdp-event", true));
+
+    static final String METRICS_NS = "veidemann";
+    static final String METRICS_SUBSYSTEM = "chrome_client";
+
+    static final Gauge inFlightCommands = Gauge.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("inflight_commands")
+            .help("Commands waiting for a response from the browser")
+            .register();
+
+    static final Gauge pendingEventFutures = Gauge.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("pending_event_futures")
+            .help("Futures waiting for an event from the browser")
+            .register();
+
+    static final Counter commandTimeoutsTotal = Counter.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("command_timeouts_total")
+            .help("Total commands evicted because no response was received within the protocol timeout")
+            .labelNames("method")
+            .register();
+
+    static final Counter eventTimeoutsTotal = Counter.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("event_timeouts_total")
+            .help("Total event futures evicted because the event was not received within the timeout")
+            .labelNames("method")
+            .register();
+
+    static final Gauge eventListenerCount = Gauge.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("event_listeners")
+            .help("Event listeners currently registered")
+            .register();
+
     private final AtomicLong idSeq = new AtomicLong(1);
 
     final ConcurrentHashMap<Long, CompletableFuture<JsonObject>> methodFutures = new ConcurrentHashMap<>();
 
-    final ConcurrentHashMap<String, List<CompletableFuture<JsonObject>>> eventFutures = new ConcurrentHashMap<>();
+    final EventRegistry<CompletableFuture<JsonObject>> eventFutures = new EventRegistry<>();
+
+    final EventRegistry<Consumer<JsonObject>> eventListeners = new EventRegistry<>();
 
-    final ConcurrentHashMap<String, List<Consumer<JsonObject>>> eventListeners = new ConcurrentHashMap<>();
+    final Set<EventPublisher<?>.BufferedSubscription> eventStreams = ConcurrentHashMap.newKeySet();
 
     protected final ConcurrentHashMap<String, CdpSession> sessions = new ConcurrentHashMap<>();
 
@@ -75,30 +139,166 @@ public abstract class Cdp implements WebSocketCallback {
 
     public abstract <T> CompletableFuture<T> call(Command<T> command);
 
-    public void addEventListener(String method, Consumer<JsonObject> listener) {
-        List<Consumer<JsonObject>> list = eventListeners.compute(method, (k, v) -> {
-            if (v == null) {
-                v = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Register a listener for an event.
+     *
+     * @param method   the event name
+     * @param listener the listener
+     * @return a handle for removing the listener
+     */
+    public EventSubscription addEventListener(String method, Consumer<JsonObject> listener) {
+        eventListeners.add(method, listener);
+        eventListenerCount.inc();
+        return new EventSubscription(this, method, listener);
+    }
+
+    public <T> EventSubscription addEventListener(String method, Consumer<T> listener, Class<T> eventType) {
+        return addEventListener(method, el -> listener.accept(parseResult(el, eventType)));
+    }
+
+    /**
+     * Get a publisher for an event with backpressure.
+     * <p>
+     * Each subscriber registers its own listener, which is removed when the subscription is cancelled.
+     *
+     * @param method    the event name
+     * @param eventType the class to deserialize the event into
+     * @param options   buffering options for each subscriber
+     * @return the publisher
+     */
+    public <T> Flow.Publisher<T> eventPublisher(String method, Class<T> eventType, EventStreamOptions<T> options) {
+        return new EventPublisher<>(this, method, eventType, options);
+    }
+
+    /**
+     * Open a protocol stream for reading.
+     * <p>
+     * Commands run with {@code transferMode: ReturnAsStream} return a stream handle instead of the data. The returned
+     * stream reads the data in chunks and closes the handle when closed.
+     *
+     * @param handle the stream handle
+     * @return an input stream for the data
+     */
+    public CdpInputStream openStream(String handle) {
+        return new CdpInputStream(this, handle);
+    }
+
+    void removeEventListener(String method, Consumer<JsonObject> listener) {
+        if (eventListeners.remove(method, listener)) {
+            eventListenerCount.dec();
+        }
+    }
+
+    /**
+     * Get a future which is completed the next time the event is received.
+     * <p>
+     * The future fails with a {@link TimeoutException} if the event is not received within the protocol timeout.
+     *
+     * @param method    the event name
+     * @param eventType the class to deserialize the event into
+     * @return a future which is completed with the next occurrence of the event
+     */
+    public <T> CompletableFuture<T> eventFuture(String method, Class<T> eventType) {
+        return eventFuture(method, eventType, config.getProtocolTimeoutMs());
+    }
+
+    /**
+     * Get a future which is completed the next time the event is received.
+     * <p>
+     * If the returned future is completed or cancelled by the caller, the registration is removed.
+     *
+     * @param method    the event name
+     * @param eventType the class to deserialize the event into
+     * @param timeoutMs the time to wait for the event before failing with a {@link TimeoutException}
+     * @return a future which is completed with the next occurrence of the event
+     */
+    public <T> CompletableFuture<T> eventFuture(String method, Class<T> eventType, long timeoutMs) {
+        final CompletableFuture<JsonObject> future = new CompletableFuture<>();
+        eventFutures.add(method, future);
+        pendingEventFutures.inc();
+
+        final Timeout deadline = DEADLINE_TIMER.newTimeout(t -> {
+            if (eventFutures.remove(method, future)) {
+                eventTimeoutsTotal.labels(method).inc();
+                future.completeExceptionally(
+                        new TimeoutException("Event " + method + " was not received within " + timeoutMs + "ms"));
             }
-            v.add(listener);
-            return v;
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        future.whenComplete((event, error) -> {
+            deadline.cancel();
+            eventFutures.remove(method, future);
+            pendingEventFutures.dec();
         });
+
+        return bind(future, eventType);
     }
 
-    public <T> void addEventListener(String method, Consumer<T> listener, Class<T> eventType) {
-        addEventListener(method, el -> listener.accept(parseResult(el, eventType)));
+    /**
+     * Register a future for the response to a command.
+     * <p>
+     * The future is removed from {@link #methodFutures} when it is completed, either by a response from the browser,
+     * by the caller or when the protocol timeout is reached. In the last case the future fails with a
+     * {@link TimeoutException}.
+     *
+     * @param command the command to register a response future for
+     * @return the registered future
+     */
+    CompletableFuture<JsonObject> registerMethodFuture(Command<?> command) {
+        final long id = command.getRequestId();
+        final String method = command.getMethod();
+        final long timeoutMs = config.getProtocolTimeoutMs();
+        final CompletableFuture<JsonObject> future = new CompletableFuture<>();
+
+        methodFutures.put(id, future);
+        inFlightCommands.inc();
+
+        final Timeout deadline = DEADLINE_TIMER.newTimeout(t -> {
+            if (methodFutures.remove(id, future)) {
+                commandTimeoutsTotal.labels(method).inc();
+                future.completeExceptionally(
+                        new TimeoutException("No response for " + method + " within " + timeoutMs + "ms"));
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        future.whenComplete((result, error) -> {
+            deadline.cancel();
+            methodFutures.remove(id, future);
+            inFlightCommands.dec();
+        });
+
+        return future;
     }
 
-    public <T> CompletableFuture<T> eventFuture(String method, Class<T> eventType) {
-        CompletableFuture<JsonObject> future = new CompletableFuture<>();
-        List<CompletableFuture<JsonObject>> list = eventFutures.compute(method, (k, v) -> {
-            if (v == null) {
-                v = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Create a typed future for a raw response future.
+     * <p>
+     * Completing or cancelling the returned future cancels the raw future, which in turn evicts it from the pending
+     * maps. Without this, a caller giving up on a call would leave the raw future behind until the connection closes.
+     *
+     * @param source     the raw future
+     * @param resultType the class to deserialize the result into
+     * @return the typed future
+     */
+    <T> CompletableFuture<T> bind(CompletableFuture<JsonObject> source, Class<T> resultType) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        source.whenComplete((json, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                try {
+                    result.complete(parseResult(json, resultType));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        result.whenComplete((r, error) -> {
+            if (!source.isDone()) {
+                source.cancel(false);
             }
-            v.add(future);
-            return v;
         });
-        return future.thenApply(el -> parseResult(el, eventType));
+        return result;
     }
 
     @Override
@@ -126,11 +326,11 @@ public abstract class Cdp implements WebSocketCallback {
                     session.onMessageReceived(response.params.get("message").getAsString());
                 }
             } else if ("Target.detachedFromTarget".equals(response.method)) {
-                CdpSession session = sessions.get(response.params.get("sessionId").getAsString());
+                CdpSession session = sessions.remove(response.params.get("sessionId").getAsString());
                 if (session != null) {
                     session.onClose("Detached from target");
                 }
-                sessions.remove(session.sessionId);
+                dispatchEvent(response.method, response.params);
             } else {
                 dispatchEvent(response.method, response.params);
             }
@@ -148,16 +348,14 @@ public abstract class Cdp implements WebSocketCallback {
         }
     }
 
+    @SuppressWarnings("unchecked")
     void dispatchEvent(String method, JsonObject event) {
-        List<CompletableFuture<JsonObject>> futures = eventFutures.remove(method);
-        if (futures != null) {
-            for (CompletableFuture<JsonObject> future : futures) {
-                future.complete(event);
-            }
+        for (Object future : eventFutures.removeAll(method)) {
+            ((CompletableFuture<JsonObject>) future).complete(event);
         }
 
-        for (Consumer<JsonObject> listener : eventListeners.getOrDefault(method, Collections.emptyList())) {
-            listener.accept(event);
+        for (Object listener : eventListeners.get(method)) {
+            ((Consumer<JsonObject>) listener).accept(event);
         }
     }
 
@@ -202,19 +400,21 @@ public abstract class Cdp implements WebSocketCallback {
     @Override
     public void onClose(String reason) {
         Exception ex = new ClientClosedException(reason);
-        for (CompletableFuture<JsonObject> m : methodFutures.values()) {
+        // Completing a future removes it from the pending maps, so iterate over copies
+        for (CompletableFuture<JsonObject> m : new ArrayList<>(methodFutures.values())) {
             m.obtrudeException(ex);
         }
-        for (List<CompletableFuture<JsonObject>> e : eventFutures.values()) {
-            for (CompletableFuture<JsonObject> f : e) {
-                f.obtrudeException(ex);
-            }
+        for (CompletableFuture<JsonObject> f : eventFutures.values()) {
+            f.obtrudeException(ex);
         }
         for (CdpSession s : sessions.values()) {
             s.onClose(reason);
         }
+        for (EventPublisher<?>.BufferedSubscription s : eventStreams) {
+            s.complete();
+        }
         methodFutures.clear();
-        eventListeners.clear();
+        eventListenerCount.dec(eventListeners.clear());
         eventFutures.clear();
     }
 }
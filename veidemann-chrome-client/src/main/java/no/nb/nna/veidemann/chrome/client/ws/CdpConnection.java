@@ -18,20 +18,20 @@ package no.nb.nna.veidemann.chrome.client.ws;
 import com.google.gson.JsonObject;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.Future;
 import io.opentracing.ActiveSpan;
+import io.prometheus.client.Counter;
 import no.nb.nna.veidemann.chrome.client.ChromeDebugProtocolConfig;
 import no.nb.nna.veidemann.chrome.client.ClientClosedException;
+import no.nb.nna.veidemann.chrome.client.EndpointUnavailableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -41,6 +41,20 @@ public class CdpConnection extends Cdp implements WebSocketCallback {
 
     private static final Logger LOG = LoggerFactory.getLogger(CdpConnection.class);
 
+    /**
+     * Quiet period when shutting down the event loop, giving the close frame time to be written.
+     */
+    private static final long DISPOSE_QUIET_PERIOD_MS = 200L;
+
+    static final Counter connectAttemptsTotal = Counter.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("connect_attempts_total")
+            .help("Total connection attempts to the browser by result. "
+                    + "Rejected attempts were refused by the circuit breaker")
+            .labelNames("result")
+            .register();
+
     WebsocketClient websocketClient;
 
     final AtomicBoolean closed = new AtomicBoolean(false);
@@ -51,47 +65,106 @@ public class CdpConnection extends Cdp implements WebSocketCallback {
 
     URI webSocketUri;
 
-    public CdpConnection(final ChromeDebugProtocolConfig config) {
+    private CdpConnection(final ChromeDebugProtocolConfig config) {
         super(config);
         workerGroup = new NioEventLoopGroup(getConfig().getWorkerThreads());
+    }
 
-        try {
-            boolean connected = false;
-            int connectAttempts = 0;
-            while (!connected && connectAttempts < getConfig().getMaxConnectionAttempts()) {
-                try {
-                    if (getConfig().getBrowserWSEndpoint() != null && !getConfig().getBrowserWSEndpoint().trim().isEmpty()) {
-                        webSocketUri = new URI(getConfig().getBrowserWSEndpoint());
-                    } else {
-                        URL versionUrl = new URL("http", getConfig().getHost(), getConfig().getPort(), "/json/version");
-                        try (InputStream in = versionUrl.openStream()) {
-                            InputStreamReader inr = new InputStreamReader(in);
-                            Map version = GSON.fromJson(inr, Map.class);
-                            webSocketUri = new URI((String) version.get("webSocketDebuggerUrl"));
+    /**
+     * Connect to a browser.
+     * <p>
+     * This method does not block. Failed attempts are retried with jittered exponential backoff up to
+     * {@link ChromeDebugProtocolConfig#getMaxConnectionAttempts()} times. Attempts to an endpoint which has failed
+     * repeatedly are refused by the endpoint's circuit breaker with an {@link EndpointUnavailableException}.
+     *
+     * @param config the config
+     * @return a future completed with the connection
+     */
+    public static CompletableFuture<CdpConnection> connect(final ChromeDebugProtocolConfig config) {
+        CdpConnection connection = new CdpConnection(config);
+        CompletableFuture<CdpConnection> result = new CompletableFuture<>();
+        result.whenComplete((c, error) -> {
+            if (error != null) {
+                connection.closed.set(true);
+                connection.closedReason = error.toString();
+                connection.workerGroup.shutdownGracefully();
+            }
+        });
+        connection.attemptConnect(result, CircuitBreaker.forEndpoint(EndpointDiscovery.endpointKey(config), config), 0);
+        return result;
+    }
+
+    private void attemptConnect(CompletableFuture<CdpConnection> result, CircuitBreaker breaker, int attempt) {
+        if (result.isDone()) {
+            // Cancelled by the caller
+            return;
+        }
+        if (!breaker.tryAcquire()) {
+            connectAttemptsTotal.labels("rejected").inc();
+            result.completeExceptionally(new EndpointUnavailableException("Too many failed connection attempts to "
+                    + breaker.getEndpoint() + ", not trying again yet"));
+            return;
+        }
+
+        EndpointDiscovery.discover(getConfig())
+                .thenCompose(uri -> {
+                    webSocketUri = uri;
+                    return WebsocketClient.connect(this, uri, getConfig(), workerGroup);
+                })
+                .whenComplete((client, error) -> {
+                    if (error == null) {
+                        connectAttemptsTotal.labels("success").inc();
+                        breaker.onSuccess();
+                        websocketClient = client;
+                        if (!result.complete(this)) {
+                            client.close();
                         }
+                        return;
                     }
 
-                    this.websocketClient = new WebsocketClient(this, webSocketUri, getConfig(), workerGroup);
-                    connected = true;
-                } catch (IOException e) {
-                    connectAttempts++;
-                    LOG.debug("Could not connect to Chrome BrowserClient. Retrying in {}ms", getConfig().getReconnectDelay());
-                    try {
-                        Thread.sleep(getConfig().getReconnectDelay());
-                    } catch (InterruptedException e1) {
-                        throw new RuntimeException(e1);
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    connectAttemptsTotal.labels("failure").inc();
+                    breaker.onFailure();
+                    EndpointDiscovery.invalidate(getConfig());
+
+                    if (result.isDone() || attempt + 1 >= getConfig().getMaxConnectionAttempts() || breaker.isOpen()) {
+                        LOG.warn("Could not connect to Chrome BrowserClient at {}: {}",
+                                breaker.getEndpoint(), cause.toString());
+                        result.completeExceptionally(cause);
+                        return;
                     }
-                }
-            }
-        } catch (URISyntaxException e) {
-            LOG.error("Failed to connect to Chrome BrowserClient.", e);
-            closed.set(true);
-            throw new RuntimeException(e);
+
+                    long delay = backoffDelay(attempt);
+                    LOG.debug("Could not connect to Chrome BrowserClient at {}: {}. Retrying in {}ms",
+                            breaker.getEndpoint(), cause.toString(), delay);
+                    DEADLINE_TIMER.newTimeout(t -> attemptConnect(result, breaker, attempt + 1),
+                            delay, TimeUnit.MILLISECONDS);
+                });
+    }
+
+    private long backoffDelay(int attempt) {
+        return backoffDelay(attempt, getConfig().getReconnectDelay(), getConfig().getMaxReconnectDelay());
+    }
+
+    /**
+     * Compute the delay before the next attempt as a random value between zero and the exponentially growing
+     * backoff limit ("full jitter").
+     */
+    static long backoffDelay(int attempt, long reconnectDelay, long max) {
+        long limit = reconnectDelay << Math.min(attempt, 30);
+        if (limit <= 0 || limit > max) {
+            limit = max;
         }
+        return limit <= 0 ? 0 : ThreadLocalRandom.current().nextLong(limit + 1);
     }
 
     public CompletableFuture<CdpSession> createNewSessionClient(TargetInfo targetInfo) {
-        return new AttachToTargetCmd(CdpConnection.this, targetInfo.targetId()).runAsync()
+        return createNewSessionClient(targetInfo.targetId());
+    }
+
+    public CompletableFuture<CdpSession> createNewSessionClient(String targetId) {
+        return new AttachToTargetCmd(CdpConnection.this, targetId).runAsync()
                 .thenApply(r -> createSessionClient(r.sessionId()));
     }
 
@@ -102,11 +175,15 @@ public class CdpConnection extends Cdp implements WebSocketCallback {
 
             if (isClosed()) {
                 LOG.info("Calling {} on closed session. {}", command.getMethod(), getClosedReason());
-                CompletableFuture<JsonObject> future = new CompletableFuture<>();
+                span.log("Client closed");
+                cont.activate().close();
+                CompletableFuture<T> future = new CompletableFuture<>();
                 future.completeExceptionally(new ClientClosedException(getClosedReason()));
+                return future;
             }
 
-            CompletableFuture<JsonObject> future = new CompletableFuture<JsonObject>().whenComplete((json, error) -> {
+            CompletableFuture<JsonObject> future = registerMethodFuture(command);
+            future.whenComplete((json, error) -> {
                 try (ActiveSpan activeSpan = cont.activate()) {
                     if (error != null) {
                         activeSpan.log(error.toString());
@@ -114,8 +191,6 @@ public class CdpConnection extends Cdp implements WebSocketCallback {
                 }
             });
 
-            methodFutures.put(command.getRequestId(), future);
-
             span.setTag("request", command.toString());
 
             if (LOG.isTraceEnabled()) {
@@ -127,10 +202,9 @@ public class CdpConnection extends Cdp implements WebSocketCallback {
             try {
                 websocketClient.sendMessage(command.serialize());
             } catch (Exception t) {
-                methodFutures.remove(command.getRequestId());
                 future.completeExceptionally(t);
             }
-            return future.thenApply(result -> parseResult(result, command.getResultType()));
+            return bind(future, command.getResultType());
         }
     }
 
@@ -158,7 +232,9 @@ public class CdpConnection extends Cdp implements WebSocketCallback {
     public void onClose(String reason) {
         closedReason = reason;
         closed.set(true);
-        websocketClient.close();
+        if (websocketClient != null) {
+            websocketClient.close();
+        }
         if (clientClosedListener != null) {
             clientClosedListener.clientClosed(reason);
         }
@@ -166,11 +242,27 @@ public class CdpConnection extends Cdp implements WebSocketCallback {
         super.onClose(reason);
     }
 
+    /**
+     * Close the connection and shut down its event loop.
+     * <p>
+     * Waits at most the protocol timeout for the event loop to terminate. The wait can be interrupted, so a caller
+     * enforcing a shorter deadline can cancel it.
+     */
     public void dispose() {
         try {
             onClose("Closed by client");
         } finally {
-            workerGroup.shutdownGracefully().awaitUninterruptibly();
+            long timeoutMs = getConfig().getProtocolTimeoutMs();
+            Future<?> shutdown = workerGroup.shutdownGracefully(DISPOSE_QUIET_PERIOD_MS, timeoutMs,
+                    TimeUnit.MILLISECONDS);
+            try {
+                if (!shutdown.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("Event loop did not shut down within {}ms", timeoutMs);
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Interrupted while waiting for event loop to shut down");
+                Thread.currentThread().interrupt();
+            }
         }
     }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import io.prometheus.client.Counter;
+import no.nb.nna.veidemann.chrome.client.ChromeDebugProtocolConfig;
+import no.nb.nna.veidemann.chrome.client.ClientClosedException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads a protocol stream, like the result of a command run with {@code transferMode: ReturnAsStream}.
+ * <p>
+ * The stream is read with {@code IO.read} in chunks of {@link ChromeDebugProtocolConfig#getStreamChunkSize()} bytes.
+ * A number of reads are kept in flight ahead of the reader, so the transfer from the browser overlaps with
+ * consumption. Each chunk is decoded when it is consumed, so only the chunks in flight are held in memory,
+ * regardless of the size of the stream. The handle is closed with {@code IO.close} when this stream is closed.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class CdpInputStream extends InputStream {
+
+    static final Counter streamBytesTotal = Counter.build()
+            .namespace(Cdp.METRICS_NS)
+            .subsystem(Cdp.METRICS_SUBSYSTEM)
+            .name("stream_bytes_total")
+            .help("Total bytes read from protocol streams")
+            .register();
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Cdp client;
+
+    private final String handle;
+
+    private final int chunkSize;
+
+    private final int readAhead;
+
+    private final long timeoutMs;
+
+    private final Queue<CompletableFuture<IoReadCmd.Response>> inFlight = new ArrayDeque<>();
+
+    private byte[] chunk = EMPTY;
+
+    private int pos;
+
+    private boolean eof;
+
+    private boolean closed;
+
+    CdpInputStream(Cdp client, String handle) {
+        this.client = client;
+        this.handle = handle;
+        this.chunkSize = client.getConfig().getStreamChunkSize();
+        this.readAhead = client.getConfig().getStreamReadAhead();
+        this.timeoutMs = client.getConfig().getProtocolTimeoutMs();
+        requestChunks();
+    }
+
+    public String getHandle() {
+        return handle;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return chunk[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - pos;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        chunk = EMPTY;
+        cancelInFlight();
+        new IoCloseCmd(client, handle).runAsync();
+    }
+
+    /**
+     * Make sure there are unread bytes in the current chunk.
+     *
+     * @return false at end of stream
+     */
+    private boolean nextChunk() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (pos >= chunk.length) {
+            if (eof) {
+                return false;
+            }
+            CompletableFuture<IoReadCmd.Response> next = inFlight.poll();
+            requestChunks();
+            IoReadCmd.Response response = await(next);
+
+            chunk = decode(response);
+            pos = 0;
+            streamBytesTotal.inc(chunk.length);
+            if (response.eof()) {
+                eof = true;
+                // Reads past the end only return eof
+                cancelInFlight();
+            }
+        }
+        return true;
+    }
+
+    private void requestChunks() {
+        while (!eof && inFlight.size() < readAhead) {
+            inFlight.add(new IoReadCmd(client, handle, chunkSize).runAsync());
+        }
+    }
+
+    private IoReadCmd.Response await(CompletableFuture<IoReadCmd.Response> future) throws IOException {
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ClientClosedException) {
+                throw (ClientClosedException) cause;
+            }
+            throw new IOException("Reading stream " + handle + " failed", cause);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("Timed out reading stream " + handle, e);
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading stream " + handle, e);
+        }
+    }
+
+    private static byte[] decode(IoReadCmd.Response response) {
+        String data = response.data();
+        if (data == null || data.isEmpty()) {
+            return EMPTY;
+        }
+        if (response.base64Encoded()) {
+            return Base64.getDecoder().decode(data);
+        }
+        return data.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void cancelInFlight() {
+        CompletableFuture<IoReadCmd.Response> f;
+        while ((f = inFlight.poll()) != null) {
+            f.cancel(false);
+        }
+    }
+}
@@ -13,23 +13,30 @@ public class CdpSession extends Cdp {
     private static final Logger LOG = LoggerFactory.getLogger(CdpSession.class);
     protected final String sessionId;
     protected final Cdp client;
+    private final SerialEventExecutor eventExecutor;
+    private volatile String sessionClosedReason;
 
     public CdpSession(String sessionId, Cdp client) {
         super(client.config);
         this.sessionId = sessionId;
         this.client = client;
+        this.eventExecutor = new SerialEventExecutor(EVENT_EXECUTOR_SERVICE, config.getEventQueueSize(),
+                () -> onClose("Event queue overflow, listeners not keeping up with events"));
+    }
+
+    public String getSessionId() {
+        return sessionId;
     }
 
     public <T> CompletableFuture<T> call(Command<T> command) {
         if (isClosed()) {
             LOG.info("Calling {} on closed session. {}", command.getMethod(), getClosedReason());
-            CompletableFuture<JsonObject> future = new CompletableFuture<>();
+            CompletableFuture<T> future = new CompletableFuture<>();
             future.completeExceptionally(new ClientClosedException(getClosedReason()));
-            return future.thenApply(result -> parseResult(result, command.resultType));
+            return future;
         }
 
-        CompletableFuture<JsonObject> future = new CompletableFuture<>();
-        methodFutures.put(command.getRequestId(), future);
+        CompletableFuture<JsonObject> future = registerMethodFuture(command);
 
         if (LOG.isTraceEnabled()) {
             LOG.trace("Sent: {}", command.serialize());
@@ -45,20 +52,31 @@ public class CdpSession extends Cdp {
                 f.get();
             }
         } catch (Exception t) {
-            methodFutures.remove(command.getRequestId());
             future.completeExceptionally(new CdpException("Calling method " + command.getMethod() + " failed", t));
         }
-        return future.thenApply(result -> parseResult(result, command.resultType));
+        return bind(future, command.resultType);
+    }
+
+    /**
+     * Events are handed over to this session's serial executor.
+     * <p>
+     * The I/O thread is shared by all sessions, so listeners are never run on it. Events are still delivered in the
+     * order they were received, and listeners are free to make blocking calls to the browser.
+     */
+    @Override
+    void dispatchEvent(String method, JsonObject event) {
+        eventExecutor.execute(() -> super.dispatchEvent(method, event));
     }
 
     @Override
     public boolean isClosed() {
-        return client.isClosed();
+        return sessionClosedReason != null || client.isClosed();
     }
 
     @Override
     public String getClosedReason() {
-        return client.getClosedReason();
+        String reason = sessionClosedReason;
+        return reason != null ? reason : client.getClosedReason();
     }
 
     @Override
@@ -68,6 +86,9 @@ public class CdpSession extends Cdp {
 
     @Override
     public void onClose(String reason) {
+        if (sessionClosedReason == null) {
+            sessionClosedReason = reason;
+        }
         super.onClose(reason);
         client.removeSessionClient(sessionId);
         LOG.debug("Session closed. Reason: '{}', Session id: {}", reason, sessionId);
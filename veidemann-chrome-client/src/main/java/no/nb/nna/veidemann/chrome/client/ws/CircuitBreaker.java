@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import io.prometheus.client.Gauge;
+import no.nb.nna.veidemann.chrome.client.ChromeDebugProtocolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breaker for connections to one browser endpoint.
+ * <p>
+ * After a number of consecutive failed connection attempts the breaker opens, and connections to the endpoint fail
+ * immediately. When the open period has passed, one trial connection is let through. If it succeeds the breaker
+ * closes, otherwise it opens again.
+ */
+class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    static final Gauge circuitBreakerState = Gauge.build()
+            .namespace(Cdp.METRICS_NS)
+            .subsystem(Cdp.METRICS_SUBSYSTEM)
+            .name("circuit_breaker_state")
+            .help("State of the circuit breaker for a browser endpoint. 0 = closed, 1 = half open, 2 = open")
+            .labelNames("endpoint")
+            .register();
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final String endpoint;
+
+    private final int failureThreshold;
+
+    private final long openMs;
+
+    private State state = State.CLOSED;
+
+    private int failures;
+
+    private long openedAt;
+
+    CircuitBreaker(String endpoint, int failureThreshold, long openMs) {
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+        circuitBreakerState.labels(endpoint).set(0);
+    }
+
+    /**
+     * Get the circuit breaker for an endpoint.
+     * <p>
+     * The breaker is shared by all connections to the endpoint. Its thresholds are taken from the config of the first
+     * connection.
+     *
+     * @param endpoint the endpoint, as returned by {@link EndpointDiscovery#endpointKey(ChromeDebugProtocolConfig)}
+     * @param config   the config
+     * @return the circuit breaker
+     */
+    static CircuitBreaker forEndpoint(String endpoint, ChromeDebugProtocolConfig config) {
+        return BREAKERS.computeIfAbsent(endpoint, k -> new CircuitBreaker(k,
+                config.getCircuitBreakerFailureThreshold(), config.getCircuitBreakerOpenMs()));
+    }
+
+    /**
+     * Ask for permission to try a connection.
+     *
+     * @return true if the connection may be tried, false if it should fail immediately
+     */
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= openMs) {
+                    setState(State.HALF_OPEN);
+                    return true;
+                }
+                return false;
+            default:
+                // A trial connection is already in progress
+                return false;
+        }
+    }
+
+    synchronized void onSuccess() {
+        failures = 0;
+        if (state != State.CLOSED) {
+            LOG.info("Connection to {} succeeded, closing circuit breaker", endpoint);
+            setState(State.CLOSED);
+        }
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            LOG.warn("{} consecutive connection failures to {}, failing fast for {}ms", failures, endpoint, openMs);
+            openedAt = System.currentTimeMillis();
+            setState(State.OPEN);
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return state == State.OPEN;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    private void setState(State newState) {
+        state = newState;
+        circuitBreakerState.labels(endpoint).set(newState.ordinal());
+    }
+}
@@ -65,9 +65,15 @@ public abstract class Command<T extends Object> {
      * @throws TimeoutException       is thrown if no response is received within the time limit
      */
     public T run() throws ExecutionException, TimeoutException {
+        CompletableFuture<T> future = runAsync();
         try {
-            return runAsync().get(client.getConfig().getProtocolTimeoutMs(), TimeUnit.MILLISECONDS);
+            return future.get(client.getConfig().getProtocolTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Cancelling releases the pending response future held by the client
+            future.cancel(false);
+            throw e;
         } catch (InterruptedException e) {
+            future.cancel(false);
             throw new TimeoutException("Call was interrupted: " + e.toString());
         }
     }
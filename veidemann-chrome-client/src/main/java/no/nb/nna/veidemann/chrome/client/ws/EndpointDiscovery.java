@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import no.nb.nna.veidemann.chrome.client.ChromeDebugProtocolConfig;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static no.nb.nna.veidemann.chrome.client.ws.Cdp.GSON;
+
+/**
+ * Looks up the browser's websocket endpoint from '/json/version'.
+ * <p>
+ * Lookups are asynchronous and cached per host and port, so that concurrent connections to the same browser share
+ * one lookup. A cached endpoint is dropped when a connection to it fails.
+ */
+final class EndpointDiscovery {
+
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+
+    private static final Map<String, CachedEndpoint> CACHE = new ConcurrentHashMap<>();
+
+    private EndpointDiscovery() {
+    }
+
+    /**
+     * Get a key identifying the browser endpoint of a config.
+     *
+     * @param config the config
+     * @return the configured websocket endpoint if set, otherwise host and port
+     */
+    static String endpointKey(ChromeDebugProtocolConfig config) {
+        if (hasBrowserWSEndpoint(config)) {
+            return config.getBrowserWSEndpoint().trim();
+        }
+        return config.getHost() + ":" + config.getPort();
+    }
+
+    /**
+     * Get the websocket URI to connect to.
+     *
+     * @param config the config
+     * @return a future completed with the URI
+     */
+    static CompletableFuture<URI> discover(ChromeDebugProtocolConfig config) {
+        if (hasBrowserWSEndpoint(config)) {
+            try {
+                return CompletableFuture.completedFuture(new URI(config.getBrowserWSEndpoint().trim()));
+            } catch (URISyntaxException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        String key = endpointKey(config);
+        long now = System.currentTimeMillis();
+        CachedEndpoint cached = CACHE.compute(key, (k, v) -> {
+            if (v == null || v.expires < now || v.uri.isCompletedExceptionally()) {
+                return new CachedEndpoint(lookup(config), now + config.getEndpointCacheTtlMs());
+            }
+            return v;
+        });
+        cached.uri.whenComplete((uri, error) -> {
+            if (error != null) {
+                CACHE.remove(key, cached);
+            }
+        });
+        return cached.uri;
+    }
+
+    /**
+     * Drop the cached endpoint for a config.
+     *
+     * @param config the config
+     */
+    static void invalidate(ChromeDebugProtocolConfig config) {
+        CACHE.remove(endpointKey(config));
+    }
+
+    private static CompletableFuture<URI> lookup(ChromeDebugProtocolConfig config) {
+        HttpRequest request;
+        try {
+            URI versionUri = new URI("http", null, config.getHost(), config.getPort(), "/json/version", null, null);
+            request = HttpRequest.newBuilder(versionUri)
+                    .timeout(Duration.ofMillis(config.getProtocolTimeoutMs()))
+                    .GET()
+                    .build();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    try {
+                        if (response.statusCode() != 200) {
+                            throw new IOException("Got status " + response.statusCode() + " from " + request.uri());
+                        }
+                        Map version = GSON.fromJson(response.body(), Map.class);
+                        Object url = version == null ? null : version.get("webSocketDebuggerUrl");
+                        if (url == null) {
+                            throw new IOException("No webSocketDebuggerUrl in response from " + request.uri());
+                        }
+                        return new URI((String) url);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    private static boolean hasBrowserWSEndpoint(ChromeDebugProtocolConfig config) {
+        return config.getBrowserWSEndpoint() != null && !config.getBrowserWSEndpoint().trim().isEmpty();
+    }
+
+    private static class CachedEndpoint {
+        private final CompletableFuture<URI> uri;
+
+        private final long expires;
+
+        private CachedEndpoint(CompletableFuture<URI> uri, long expires) {
+            this.uri = uri;
+            this.expires = expires;
+        }
+    }
+}
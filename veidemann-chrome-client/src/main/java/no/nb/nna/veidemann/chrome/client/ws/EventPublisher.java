@@ -0,0 +1,265 @@
+/*
+ * Copyright 2018 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import io.prometheus.client.Counter;
+import no.nb.nna.veidemann.chrome.client.ws.EventStreamOptions.Overflow;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Publisher of one kind of event with backpressure.
+ * <p>
+ * Each subscriber gets its own listener and a bounded buffer. Events are delivered only as requested by the
+ * subscriber, either on the thread delivering events for the session or on the thread calling
+ * {@link Flow.Subscription#request(long)}, but never concurrently. The subscriber is completed when the connection
+ * or session is closed, after all buffered events are delivered.
+ *
+ * @param <T> the event type
+ */
+public final class EventPublisher<T> implements Flow.Publisher<T> {
+
+    static final Counter eventsDroppedTotal = Counter.build()
+            .namespace(Cdp.METRICS_NS)
+            .subsystem(Cdp.METRICS_SUBSYSTEM)
+            .name("event_stream_dropped_total")
+            .help("Total events dropped because a subscriber's buffer was full")
+            .labelNames("overflow")
+            .register();
+
+    static final Counter eventsCoalescedTotal = Counter.build()
+            .namespace(Cdp.METRICS_NS)
+            .subsystem(Cdp.METRICS_SUBSYSTEM)
+            .name("event_stream_coalesced_total")
+            .help("Total events merged into a buffered event with the same key")
+            .register();
+
+    private final Cdp client;
+
+    private final String method;
+
+    private final Class<T> eventType;
+
+    private final EventStreamOptions<T> options;
+
+    EventPublisher(Cdp client, String method, Class<T> eventType, EventStreamOptions<T> options) {
+        if (options.getOverflow() == Overflow.COALESCE && options.getCoalesceKey() == null) {
+            throw new IllegalArgumentException("Overflow strategy COALESCE requires a coalesce key");
+        }
+        this.client = client;
+        this.method = method;
+        this.eventType = eventType;
+        this.options = options;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+        BufferedSubscription s = new BufferedSubscription(subscriber);
+        subscriber.onSubscribe(s);
+        s.start();
+    }
+
+    /**
+     * The buffer, demand and listener of one subscriber.
+     * <p>
+     * The buffer is keyed by the coalesce key, or by a sequence number when not coalescing, so that events keep their
+     * order while a coalesced event can be replaced in place. The buffer and demand are guarded by this.
+     */
+    final class BufferedSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super T> subscriber;
+
+        private final LinkedHashMap<Object, T> buffer = new LinkedHashMap<>();
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private long demand;
+
+        private long seq;
+
+        private boolean cancelled;
+
+        private boolean completed;
+
+        private boolean terminated;
+
+        private EventSubscription listener;
+
+        BufferedSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void start() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                listener = client.addEventListener(method, this::onEvent, eventType);
+            }
+            client.eventStreams.add(this);
+            if (client.isClosed()) {
+                complete();
+            }
+        }
+
+        private void onEvent(T event) {
+            Function<? super T, ?> keyFunction = options.getCoalesceKey();
+            Overflow overflow = options.getOverflow();
+            synchronized (this) {
+                if (cancelled || completed) {
+                    return;
+                }
+                Object key = overflow == Overflow.COALESCE ? keyFunction.apply(event) : seq++;
+                T buffered = overflow == Overflow.COALESCE ? buffer.get(key) : null;
+                if (buffered != null) {
+                    buffer.put(key, options.getMerge().apply(buffered, event));
+                    eventsCoalescedTotal.inc();
+                } else if (makeRoom(overflow)) {
+                    buffer.put(key, event);
+                } else {
+                    return;
+                }
+            }
+            drain();
+        }
+
+        /**
+         * Ensure there is room for one more event in the buffer. Must hold the lock.
+         *
+         * @return false if the event should be dropped
+         */
+        private boolean makeRoom(Overflow overflow) {
+            if (buffer.size() < options.getBufferSize()) {
+                return true;
+            }
+            if (overflow == Overflow.BLOCK) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(client.config.getProtocolTimeoutMs());
+                try {
+                    while (buffer.size() >= options.getBufferSize() && !cancelled) {
+                        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remaining <= 0) {
+                            eventsDroppedTotal.labels(overflow.name()).inc();
+                            return false;
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    eventsDroppedTotal.labels(overflow.name()).inc();
+                    return false;
+                }
+                return !cancelled;
+            }
+            Iterator<T> oldest = buffer.values().iterator();
+            oldest.next();
+            oldest.remove();
+            eventsDroppedTotal.labels(overflow.name()).inc();
+            return true;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested " + n + " events, must be positive"));
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            EventSubscription l;
+            synchronized (this) {
+                cancelled = true;
+                buffer.clear();
+                l = listener;
+                notifyAll();
+            }
+            if (l != null) {
+                l.close();
+            }
+            client.eventStreams.remove(this);
+        }
+
+        /**
+         * Complete the subscriber when the remaining buffered events are delivered.
+         */
+        void complete() {
+            synchronized (this) {
+                completed = true;
+            }
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                for (; ; ) {
+                    T next;
+                    boolean done = false;
+                    synchronized (this) {
+                        if (cancelled || terminated) {
+                            break;
+                        }
+                        if (buffer.isEmpty()) {
+                            if (!completed) {
+                                break;
+                            }
+                            terminated = true;
+                            done = true;
+                            next = null;
+                        } else if (demand == 0) {
+                            break;
+                        } else {
+                            Iterator<T> it = buffer.values().iterator();
+                            next = it.next();
+                            it.remove();
+                            if (demand != Long.MAX_VALUE) {
+                                demand--;
+                            }
+                            notifyAll();
+                        }
+                    }
+                    if (done) {
+                        client.eventStreams.remove(this);
+                        subscriber.onComplete();
+                        break;
+                    }
+                    try {
+                        subscriber.onNext(next);
+                    } catch (Throwable t) {
+                        cancel();
+                        subscriber.onError(t);
+                        break;
+                    }
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of values per event method backed by copy-on-write arrays.
+ * <p>
+ * Registrations are rare compared to events, so adding and removing copies the array for the method while reading
+ * is a single map lookup returning an immutable snapshot. Dispatch never locks and never allocates.
+ *
+ * @param <V> the type of the registered values
+ */
+final class EventRegistry<V> {
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private final ConcurrentHashMap<String, Object[]> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Add a value for a method.
+     *
+     * @param method the event method
+     * @param value  the value to add
+     */
+    void add(String method, V value) {
+        entries.merge(method, new Object[]{value}, (current, added) -> {
+            Object[] copy = Arrays.copyOf(current, current.length + 1);
+            copy[current.length] = added[0];
+            return copy;
+        });
+    }
+
+    /**
+     * Remove a value for a method.
+     *
+     * @param method the event method
+     * @param value  the value to remove
+     * @return true if the value was registered
+     */
+    boolean remove(String method, V value) {
+        final boolean[] removed = {false};
+        entries.computeIfPresent(method, (k, current) -> {
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == value) {
+                    removed[0] = true;
+                    if (current.length == 1) {
+                        return null;
+                    }
+                    Object[] copy = new Object[current.length - 1];
+                    System.arraycopy(current, 0, copy, 0, i);
+                    System.arraycopy(current, i + 1, copy, i, current.length - i - 1);
+                    return copy;
+                }
+            }
+            return current;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Get a snapshot of the values registered for a method.
+     * <p>
+     * The returned array must not be modified.
+     *
+     * @param method the event method
+     * @return the registered values, or an empty array if there are none
+     */
+    Object[] get(String method) {
+        Object[] values = entries.get(method);
+        return values == null ? EMPTY : values;
+    }
+
+    /**
+     * Remove all values for a method and return them.
+     *
+     * @param method the event method
+     * @return the values which were registered, or an empty array if there were none
+     */
+    Object[] removeAll(String method) {
+        Object[] values = entries.remove(method);
+        return values == null ? EMPTY : values;
+    }
+
+    /**
+     * Get a snapshot of all registered values.
+     *
+     * @return all registered values
+     */
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        List<V> result = new ArrayList<>();
+        for (Object[] values : entries.values()) {
+            for (Object v : values) {
+                result.add((V) v);
+            }
+        }
+        return result;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Remove all values.
+     *
+     * @return the number of values removed
+     */
+    int clear() {
+        int count = 0;
+        for (String method : entries.keySet()) {
+            Object[] values = entries.remove(method);
+            if (values != null) {
+                count += values.length;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import java.util.Objects;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Buffering options for an event publisher.
+ * <p>
+ * Each subscriber has its own bounded buffer holding events which are received, but not yet requested. The overflow
+ * strategy decides what happens when an event is received while the buffer is full.
+ *
+ * @param <T> the event type
+ */
+public class EventStreamOptions<T> {
+
+    public enum Overflow {
+        /**
+         * Drop the oldest buffered event to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Merge each received event into a buffered event with the same key. When the buffer is full and no buffered
+         * event has the same key, drop the oldest buffered event. Requires a coalesce key.
+         */
+        COALESCE,
+        /**
+         * Make the thread delivering events wait up to the protocol timeout for room in the buffer, then drop the new
+         * event. This holds back all other events for the session while waiting.
+         */
+        BLOCK
+    }
+
+    private int bufferSize = 1000;
+
+    private Overflow overflow = Overflow.DROP_OLDEST;
+
+    private Function<? super T, ?> coalesceKey;
+
+    private BinaryOperator<T> merge = (buffered, received) -> received;
+
+    /**
+     * Set the number of events which are buffered for each subscriber.
+     *
+     * @param bufferSize the maximum number of buffered events
+     * @return this object for chaining
+     */
+    public EventStreamOptions<T> withBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Set what to do when an event is received while the buffer is full.
+     *
+     * @param overflow the overflow strategy
+     * @return this object for chaining
+     */
+    public EventStreamOptions<T> withOverflow(Overflow overflow) {
+        this.overflow = Objects.requireNonNull(overflow);
+        return this;
+    }
+
+    /**
+     * Coalesce buffered events by key, e.g. request id.
+     * <p>
+     * Sets the overflow strategy to {@link Overflow#COALESCE}. An event with the same key as a buffered event is
+     * merged into the buffered event, which keeps its place in the buffer. A slow subscriber thereby gets one event
+     * per key instead of falling further behind.
+     *
+     * @param coalesceKey function extracting the key of an event
+     * @return this object for chaining
+     */
+    public EventStreamOptions<T> withCoalesceKey(Function<? super T, ?> coalesceKey) {
+        this.coalesceKey = Objects.requireNonNull(coalesceKey);
+        this.overflow = Overflow.COALESCE;
+        return this;
+    }
+
+    /**
+     * Set how two events with the same key are merged. The default keeps the most recent event.
+     *
+     * @param merge function taking the buffered and the received event and returning the event to buffer
+     * @return this object for chaining
+     */
+    public EventStreamOptions<T> withMerge(BinaryOperator<T> merge) {
+        this.merge = Objects.requireNonNull(merge);
+        return this;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    public Function<? super T, ?> getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public BinaryOperator<T> getMerge() {
+        return merge;
+    }
+}
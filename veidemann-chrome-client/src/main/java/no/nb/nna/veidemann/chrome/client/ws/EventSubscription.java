@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Handle for an event listener registered with {@link Cdp#addEventListener(String, Consumer)}.
+ * <p>
+ * Closing the handle removes the listener. Closing is idempotent and can be done from any thread, also from within
+ * the listener itself.
+ */
+public final class EventSubscription implements AutoCloseable {
+
+    private final Cdp client;
+
+    private final String method;
+
+    private final Consumer<JsonObject> listener;
+
+    private final AtomicBoolean active = new AtomicBoolean(true);
+
+    EventSubscription(Cdp client, String method, Consumer<JsonObject> listener) {
+        this.client = client;
+        this.method = method;
+        this.listener = listener;
+    }
+
+    /**
+     * Get the event this subscription listens to.
+     *
+     * @return the event method, e.g. 'Network.requestWillBeSent'
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    public boolean isActive() {
+        return active.get() && !client.isClosed();
+    }
+
+    /**
+     * Remove the listener.
+     */
+    @Override
+    public void close() {
+        if (active.compareAndSet(true, false)) {
+            client.removeEventListener(method, listener);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of event subscriptions which are removed together.
+ * <p>
+ * Used for tying the listeners registered for a page to the lifetime of the page, so that the listeners are removed
+ * in one operation when the page is done, even if the connection is reused. Subscriptions added after the group is
+ * closed are closed immediately.
+ */
+public final class EventSubscriptionGroup implements AutoCloseable {
+
+    private final List<EventSubscription> subscriptions = new ArrayList<>();
+
+    private boolean closed = false;
+
+    /**
+     * Add a subscription to the group.
+     *
+     * @param subscription the subscription returned when registering a listener
+     * @return the subscription
+     */
+    public EventSubscription add(EventSubscription subscription) {
+        synchronized (this) {
+            if (!closed) {
+                subscriptions.add(subscription);
+                return subscription;
+            }
+        }
+        subscription.close();
+        return subscription;
+    }
+
+    /**
+     * Get the number of subscriptions in this group which are not closed.
+     *
+     * @return the number of active subscriptions
+     */
+    public synchronized int size() {
+        subscriptions.removeIf(s -> !s.isActive());
+        return subscriptions.size();
+    }
+
+    /**
+     * Remove all listeners in this group.
+     */
+    @Override
+    public void close() {
+        List<EventSubscription> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<>(subscriptions);
+            subscriptions.clear();
+        }
+        toClose.forEach(EventSubscription::close);
+    }
+}
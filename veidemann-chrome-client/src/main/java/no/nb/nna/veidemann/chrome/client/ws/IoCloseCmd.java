@@ -0,0 +1,8 @@
+package no.nb.nna.veidemann.chrome.client.ws;
+
+public class IoCloseCmd extends Command<Void> {
+    protected IoCloseCmd(Cdp client, String handle) {
+        super(client, "IO", "close", Void.TYPE);
+        withParam("handle", handle);
+    }
+}
@@ -0,0 +1,40 @@
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import no.nb.nna.veidemann.chrome.client.ws.IoReadCmd.Response;
+
+public class IoReadCmd extends Command<Response> {
+    protected IoReadCmd(Cdp client, String handle, int size) {
+        super(client, "IO", "read", Response.class);
+        withParam("handle", handle);
+        withParam("size", size);
+    }
+
+    public static class Response {
+        private boolean base64Encoded;
+
+        private String data;
+
+        private boolean eof;
+
+        /**
+         * Set if the data is base64-encoded.
+         */
+        public boolean base64Encoded() {
+            return base64Encoded;
+        }
+
+        /**
+         * Data that were read.
+         */
+        public String data() {
+            return data;
+        }
+
+        /**
+         * Set if the end-of-file condition occured while reading.
+         */
+        public boolean eof() {
+            return eof;
+        }
+    }
+}
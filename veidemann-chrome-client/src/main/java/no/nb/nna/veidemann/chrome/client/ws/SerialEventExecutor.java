@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import io.prometheus.client.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executor running tasks one at a time in submission order on threads borrowed from a shared pool.
+ * <p>
+ * Used for delivering events to the listeners of a session so that slow listeners do not stall the I/O thread
+ * shared by all sessions. Submitting never blocks. The mailbox is bounded, and when it overflows an event has to be
+ * dropped. Listeners would then see an inconsistent stream, so the overflow handler is run once to fail the session,
+ * and all later events are dropped.
+ */
+final class SerialEventExecutor implements Executor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SerialEventExecutor.class);
+
+    static final Counter mailboxOverflowTotal = Counter.build()
+            .namespace(Cdp.METRICS_NS)
+            .subsystem(Cdp.METRICS_SUBSYSTEM)
+            .name("event_mailbox_overflow_total")
+            .help("Total sessions failed because their event mailbox was full")
+            .register();
+
+    static final Counter eventsDroppedTotal = Counter.build()
+            .namespace(Cdp.METRICS_NS)
+            .subsystem(Cdp.METRICS_SUBSYSTEM)
+            .name("events_dropped_total")
+            .help("Total events dropped because a session mailbox was full")
+            .register();
+
+    private final Executor delegate;
+
+    private final BlockingQueue<Runnable> mailbox;
+
+    private final Runnable overflowHandler;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final AtomicBoolean overflowed = new AtomicBoolean(false);
+
+    /**
+     * Create an executor.
+     *
+     * @param delegate        the pool to run tasks on
+     * @param capacity        max number of tasks waiting
+     * @param overflowHandler run once on the delegate when the mailbox overflows
+     */
+    SerialEventExecutor(Executor delegate, int capacity, Runnable overflowHandler) {
+        this.delegate = delegate;
+        this.mailbox = new ArrayBlockingQueue<>(capacity);
+        this.overflowHandler = overflowHandler;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (overflowed.get()) {
+            eventsDroppedTotal.inc();
+            return;
+        }
+        if (!mailbox.offer(task)) {
+            eventsDroppedTotal.inc();
+            if (overflowed.compareAndSet(false, true)) {
+                mailboxOverflowTotal.inc();
+                int pending = mailbox.size();
+                LOG.error("Event mailbox full with {} events, failing session", pending);
+                mailbox.clear();
+                eventsDroppedTotal.inc(pending);
+                delegate.execute(overflowHandler);
+            }
+            return;
+        }
+        schedule();
+    }
+
+    /**
+     * Check if the mailbox has overflowed. Once it has, no more tasks are run.
+     *
+     * @return true if the mailbox has overflowed
+     */
+    boolean isOverflowed() {
+        return overflowed.get();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            delegate.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while (!overflowed.get() && (task = mailbox.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOG.error("Event listener failed", t);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // A task might have been added after the last poll, but before the flag was cleared
+            if (!mailbox.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -20,10 +20,12 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
@@ -39,12 +41,24 @@ import io.netty.handler.codec.http.websocketx.WebSocketVersion;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.Timeout;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import no.nb.nna.veidemann.chrome.client.ChromeDebugProtocolConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLException;
 import java.net.URI;
+import java.nio.channels.ClosedChannelException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -58,6 +72,34 @@ public class WebsocketClient {
      */
     private static final int MAX_FRAME_PAYLOAD_LENGTH = 8 * 1024 * 1024;
 
+    static final Gauge outboundPendingBytes = Gauge.build()
+            .namespace(Cdp.METRICS_NS)
+            .subsystem(Cdp.METRICS_SUBSYSTEM)
+            .name("outbound_pending_bytes")
+            .help("Bytes of messages to the browser which are not yet written to the socket")
+            .register();
+
+    static final Counter outboundMessagesTotal = Counter.build()
+            .namespace(Cdp.METRICS_NS)
+            .subsystem(Cdp.METRICS_SUBSYSTEM)
+            .name("outbound_messages_total")
+            .help("Total messages written to the browser")
+            .register();
+
+    static final Counter outboundFlushesTotal = Counter.build()
+            .namespace(Cdp.METRICS_NS)
+            .subsystem(Cdp.METRICS_SUBSYSTEM)
+            .name("outbound_flushes_total")
+            .help("Total flushes of messages to the browser. Each flush writes a batch of messages")
+            .register();
+
+    static final Counter outboundRejectedTotal = Counter.build()
+            .namespace(Cdp.METRICS_NS)
+            .subsystem(Cdp.METRICS_SUBSYSTEM)
+            .name("outbound_rejected_total")
+            .help("Total messages rejected because too many bytes were waiting to be sent")
+            .register();
+
     private Channel channel;
 
     private final EventLoopGroup workerGroup;
@@ -68,33 +110,49 @@ public class WebsocketClient {
 
     private final URI uri;
 
-    private boolean connected = false;
+    private final ChromeDebugProtocolConfig config;
 
-    private int connectionAttempts = 0;
+    /**
+     * Frames waiting to be written by the event loop.
+     */
+    private final Queue<TextWebSocketFrame> sendQueue = new ConcurrentLinkedQueue<>();
 
-    private final ChromeDebugProtocolConfig config;
+    /**
+     * Bytes in the send queue and in the channel's outbound buffer.
+     */
+    private final AtomicLong pendingBytes = new AtomicLong();
 
-    public WebsocketClient(WebSocketCallback callback, URI uri, ChromeDebugProtocolConfig config, EventLoopGroup workerGroup) {
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    private WebsocketClient(WebSocketCallback callback, URI uri, ChromeDebugProtocolConfig config, EventLoopGroup workerGroup) {
         this.config = config;
         this.callback = callback;
         this.uri = uri;
         this.workerGroup = workerGroup;
-        while (!connected && connectionAttempts++ < config.getMaxConnectionAttempts()) {
-            try {
-                connect();
-                connected = true;
-            } catch (Exception t) {
-                LOG.error("Connection failed: {}", t.toString(), t);
-                try {
-                    Thread.sleep(config.getReconnectDelay());
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }
-        }
     }
 
-    private void connect() {
+    /**
+     * Open a websocket connection.
+     * <p>
+     * This method does not block. The returned future completes when the websocket handshake is done, or
+     * exceptionally if the connection or handshake fails or does not finish within the protocol timeout. Retrying is
+     * left to the caller.
+     *
+     * @param callback    receiver of messages from the browser
+     * @param uri         the websocket URI
+     * @param config      the config
+     * @param workerGroup the event loop group to run the connection on
+     * @return a future completed with the connected client
+     */
+    public static CompletableFuture<WebsocketClient> connect(WebSocketCallback callback, URI uri,
+                                                             ChromeDebugProtocolConfig config,
+                                                             EventLoopGroup workerGroup) {
+        return new WebsocketClient(callback, uri, config, workerGroup).connect();
+    }
+
+    private CompletableFuture<WebsocketClient> connect() {
+        CompletableFuture<WebsocketClient> result = new CompletableFuture<>();
+
         String scheme = uri.getScheme() == null ? "ws" : uri.getScheme();
         final String host = uri.getHost() == null ? "127.0.0.1" : uri.getHost();
         final int port;
@@ -111,8 +169,8 @@ public class WebsocketClient {
         }
 
         if (!"ws".equalsIgnoreCase(scheme) && !"wss".equalsIgnoreCase(scheme)) {
-            System.err.println("Only WS(S) is supported.");
-            return;
+            result.completeExceptionally(new IllegalArgumentException("Only WS(S) is supported: " + uri));
+            return result;
         }
 
         final boolean ssl = "wss".equalsIgnoreCase(scheme);
@@ -121,57 +179,90 @@ public class WebsocketClient {
             try {
                 sslCtx = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
             } catch (SSLException ex) {
-                throw new RuntimeException(ex);
+                result.completeExceptionally(ex);
+                return result;
             }
         } else {
             sslCtx = null;
         }
 
-        try {
-            final WebSocketClientHandshaker handshaker = WebSocketClientHandshakerFactory.newHandshaker(
-                    uri, WebSocketVersion.V13, null, true, new DefaultHttpHeaders(), MAX_FRAME_PAYLOAD_LENGTH);
-
-            final ResponseHandler handler = new ResponseHandler();
-
-            Bootstrap b = new Bootstrap();
-            b.group(workerGroup);
-            b.channel(NioSocketChannel.class);
-            b.handler(new ChannelInitializer<SocketChannel>() {
-                @Override
-                protected void initChannel(SocketChannel ch) {
-                    ChannelPipeline p = ch.pipeline();
-                    if (sslCtx != null) {
-                        p.addLast(sslCtx.newHandler(ch.alloc(), host, port));
-                    }
-                    p.addLast(
-                            new HttpClientCodec(),
-                            new HttpObjectAggregator(8192),
-                            new WebSocketClientProtocolHandler(handshaker, false),
-                            handler);
-                }
-
-            });
-
-            channel = b.connect(uri.getHost(), port).sync().channel();
-            channel.closeFuture().addListener(c -> {
-                LOG.debug("Closed {}", uri, closeReason);
-                try {
-                    if (closeReason == null) {
-                        callback.onClose("");
-                    } else {
-                        callback.onClose(closeReason.toString());
-                    }
-                } catch (Exception t) {
-                    LOG.error("Callback is throwing an exception", t);
+        final WebSocketClientHandshaker handshaker = WebSocketClientHandshakerFactory.newHandshaker(
+                uri, WebSocketVersion.V13, null, true, new DefaultHttpHeaders(), MAX_FRAME_PAYLOAD_LENGTH);
+
+        final ResponseHandler handler = new ResponseHandler();
+
+        Bootstrap b = new Bootstrap();
+        b.group(workerGroup);
+        b.channel(NioSocketChannel.class);
+        b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(config.getProtocolTimeoutMs(), Integer.MAX_VALUE));
+        b.option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                new WriteBufferWaterMark(config.getOutboundLowWaterMark(), config.getOutboundHighWaterMark()));
+        b.handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                ChannelPipeline p = ch.pipeline();
+                if (sslCtx != null) {
+                    p.addLast(sslCtx.newHandler(ch.alloc(), host, port));
                 }
-            });
+                p.addLast(
+                        new HttpClientCodec(),
+                        new HttpObjectAggregator(8192),
+                        new WebSocketClientProtocolHandler(handshaker, false),
+                        handler);
+            }
 
-            handler.handshakeFuture().sync();
+        });
 
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
+        ChannelFuture connectFuture;
+        try {
+            connectFuture = b.connect(host, port);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            return result;
         }
+        channel = connectFuture.channel();
+
+        // Covers both the TCP connect and the websocket handshake
+        Timeout timeout = Cdp.DEADLINE_TIMER.newTimeout(t -> {
+            if (result.completeExceptionally(new TimeoutException("Timed out connecting to " + uri))) {
+                channel.close();
+            }
+        }, config.getProtocolTimeoutMs(), TimeUnit.MILLISECONDS);
 
+        connectFuture.addListener(f -> {
+            if (!f.isSuccess()) {
+                timeout.cancel();
+                result.completeExceptionally(f.cause());
+                return;
+            }
+            handler.handshakeFuture().addListener(h -> {
+                timeout.cancel();
+                if (!h.isSuccess()) {
+                    result.completeExceptionally(h.cause());
+                    channel.close();
+                    return;
+                }
+                if (!result.complete(this)) {
+                    // Timed out while the handshake was finishing
+                    channel.close();
+                    return;
+                }
+                channel.closeFuture().addListener(c -> {
+                    LOG.debug("Closed {}", uri, closeReason);
+                    discardSendQueue();
+                    try {
+                        if (closeReason == null) {
+                            callback.onClose("");
+                        } else {
+                            callback.onClose(closeReason.toString());
+                        }
+                    } catch (Exception t) {
+                        LOG.error("Callback is throwing an exception", t);
+                    }
+                });
+            });
+        });
+        return result;
     }
 
     public void close() {
@@ -181,13 +272,78 @@ public class WebsocketClient {
         channel.writeAndFlush(new CloseWebSocketFrame());
     }
 
+    /**
+     * Queue a message for sending.
+     * <p>
+     * Messages are written by the event loop in batches with one flush per batch, so a burst of commands is sent
+     * with few syscalls. While the socket's outbound buffer is above the high water mark, messages stay in the queue.
+     *
+     * @param msg the message
+     * @throws IllegalStateException if the connection is closed or too many bytes are waiting to be sent
+     */
     public void sendMessage(String msg) {
         if (!channel.isActive()) {
             throw new IllegalStateException("closed", closeReason);
         }
 
-        WebSocketFrame frame = new TextWebSocketFrame(msg);
-        channel.writeAndFlush(frame);
+        TextWebSocketFrame frame = new TextWebSocketFrame(msg);
+        int size = frame.content().readableBytes();
+        if (pendingBytes.get() + size > config.getMaxPendingOutboundBytes()) {
+            frame.release();
+            outboundRejectedTotal.inc();
+            throw new IllegalStateException("Too many bytes waiting to be sent: " + pendingBytes.get());
+        }
+        addPending(size);
+        sendQueue.add(frame);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                channel.eventLoop().execute(this::drainSendQueue);
+            } catch (RejectedExecutionException e) {
+                // Event loop is shut down
+                discardSendQueue();
+                throw new IllegalStateException("closed", e);
+            }
+        }
+    }
+
+    /**
+     * Write queued frames until the queue is empty or the channel is not writable, then flush once. Runs on the
+     * event loop.
+     */
+    private void drainSendQueue() {
+        drainScheduled.set(false);
+        int written = 0;
+        TextWebSocketFrame frame;
+        while (channel.isWritable() && (frame = sendQueue.poll()) != null) {
+            int size = frame.content().readableBytes();
+            channel.write(frame).addListener(f -> addPending(-size));
+            written++;
+        }
+        if (written > 0) {
+            channel.flush();
+            outboundMessagesTotal.inc(written);
+            outboundFlushesTotal.inc();
+        }
+        if (!channel.isActive()) {
+            discardSendQueue();
+        }
+    }
+
+    private void discardSendQueue() {
+        TextWebSocketFrame frame;
+        while ((frame = sendQueue.poll()) != null) {
+            addPending(-frame.content().readableBytes());
+            frame.release();
+        }
+    }
+
+    private void addPending(long delta) {
+        pendingBytes.addAndGet(delta);
+        outboundPendingBytes.inc(delta);
     }
 
     private class ResponseHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
@@ -203,15 +359,29 @@ public class WebsocketClient {
             handshakeFuture = ctx.newPromise();
         }
 
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            handshakeFuture.tryFailure(new ClosedChannelException());
+            super.channelInactive(ctx);
+        }
+
         @Override
         public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
             if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
-                handshakeFuture.setSuccess();
+                handshakeFuture.trySuccess();
                 callback.onConnect();
             }
             super.userEventTriggered(ctx, evt);
         }
 
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable() && !sendQueue.isEmpty()) {
+                scheduleDrain();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
         @Override
         public void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) throws Exception {
             if (frame instanceof TextWebSocketFrame) {
@@ -229,10 +399,12 @@ public class WebsocketClient {
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
             closeReason = cause;
-            LOG.error("Exception received for {}", uri, cause);
-            callback.onClose(cause.toString());
-            if (!handshakeFuture.isDone()) {
-                handshakeFuture.setFailure(cause);
+            if (handshakeFuture.isDone()) {
+                LOG.error("Exception received for {}", uri, cause);
+                callback.onClose(cause.toString());
+            } else {
+                // Reported to the caller of connect
+                handshakeFuture.tryFailure(cause);
             }
             ctx.close();
         }
@@ -26,8 +26,8 @@ import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
 import no.nb.nna.veidemann.chrome.client.BrowserClientBase;
 import no.nb.nna.veidemann.chrome.client.ChromeDebugProtocolBase;
-import no.nb.nna.veidemann.chrome.client.ChromeDebugProtocolConfig;
 import no.nb.nna.veidemann.chrome.client.ClientClosedException;
+import no.nb.nna.veidemann.chrome.client.ws.CdpConnection;
 import no.nb.nna.veidemann.chrome.client.ws.CdpSession;
 import no.nb.nna.veidemann.chrome.client.ws.ClientClosedListener;
 import org.slf4j.Logger;
@@ -58,7 +58,7 @@ public class BrowserClient {
     static final FieldSpec protocolClient = FieldSpec.builder(Codegen.CLIENT_CLASS, "protocolClient", Modifier.FINAL)
             .build();
 
-    final FieldSpec config = FieldSpec.builder(ChromeDebugProtocolConfig.class, "config", Modifier.FINAL).build();
+    final FieldSpec connection = FieldSpec.builder(CdpConnection.class, "connection", Modifier.FINAL).build();
 
     final FieldSpec closed = FieldSpec.builder(AtomicBoolean.class, "closed", Modifier.FINAL)
             .initializer("new $T(false)", AtomicBoolean.class).build();
@@ -109,8 +109,8 @@ public class BrowserClient {
 
         MethodSpec.Builder init = MethodSpec.methodBuilder("init")
                 .addParameter(chromeDebugProtocol.type, chromeDebugProtocol.name, Modifier.FINAL)
-                .addParameter(config.type, config.name, Modifier.FINAL)
-                .addStatement("super.init($N, $N)", chromeDebugProtocol, config)
+                .addParameter(connection.type, connection.name, Modifier.FINAL)
+                .addStatement("super.init($N, $N)", chromeDebugProtocol, connection)
                 .addStatement("$N.setClientClosedListener(this)", protocolClient);
 
         for (Domain domain : domains) {
@@ -143,7 +143,10 @@ public class BrowserClient {
                 .addStatement("target().onTargetCreated(t -> onTargetCreated(t.targetInfo()))")
                 .addStatement("target().onTargetDestroyed(t -> onTargetDestroyed(t.targetId()))")
                 .addStatement("target().onTargetInfoChanged(t -> onTargetInfoChanged(t.targetInfo()))")
+                .addStatement("target().onDetachedFromTarget(t -> onDetachedFromTarget(t.sessionId()))")
+                .beginControlFlow("if ($N.getConfig().isTargetDiscovery())", connection)
                 .addStatement("target().setDiscoverTargets(true).runAsync()")
+                .endControlFlow()
                 .nextControlFlow("catch (Exception e)")
                 .addStatement("$N.error(e.getMessage(), e)", logger)
                 .addStatement("throw new $T(e)", RuntimeException.class)
@@ -17,9 +17,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.Base64;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -41,11 +43,19 @@ public class Codegen {
 
     public static void main(String args[]) throws IOException {
         if (args.length < 2) {
-            throw new IllegalArgumentException("Missing required arguments. Usage: Codegen <chrome_version> <generated_code_dir>");
+            throw new IllegalArgumentException("Missing required arguments. Usage: Codegen <chrome_version> <generated_code_dir> [domains]");
         }
 
         CHROME_VERSION = args[0];
         File outdir = new File(args[1]);
+        Set<String> wantedDomains = new HashSet<>();
+        if (args.length > 2 && args[2] != null) {
+            for (String d : args[2].split(",")) {
+                if (!d.trim().isEmpty()) {
+                    wantedDomains.add(d.trim());
+                }
+            }
+        }
 
         System.out.println("Generating client for Chrome version: " + CHROME_VERSION);
         System.out.println("Sources generated in: " + outdir);
@@ -63,6 +73,11 @@ public class Codegen {
         Protocol protocol = loadProtocol(browserProtocol);
         protocol.merge(loadProtocol(jsProtocol));
 
+        if (!wantedDomains.isEmpty()) {
+            protocol.retainDomains(wantedDomains);
+            System.out.println("Generating domains: " + protocol.domainNames());
+        }
+
         protocol.gencode(outdir);
     }
 
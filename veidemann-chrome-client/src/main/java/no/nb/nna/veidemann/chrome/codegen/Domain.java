@@ -23,12 +23,15 @@ import com.squareup.javapoet.MethodSpec;
 import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeSpec;
 import no.nb.nna.veidemann.chrome.client.TargetDomainBase;
+import no.nb.nna.veidemann.chrome.client.ws.EventStreamOptions;
+import no.nb.nna.veidemann.chrome.client.ws.EventSubscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.lang.model.element.Modifier;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 import java.util.function.Consumer;
 
 /**
@@ -92,11 +95,13 @@ public class Domain {
                 MethodSpec.Builder onEventSpec = MethodSpec.methodBuilder("on" + Codegen.cap(event.name))
                         .addModifiers(Modifier.PUBLIC)
                         .addParameter(ParameterizedTypeName.get(ClassName.get(Consumer.class), struct), "listener")
-                        .addStatement("$N.addEventListener($S, listener, $T.class)",
+                        .returns(EventSubscription.class)
+                        .addStatement("return $N.addEventListener($S, listener, $T.class)",
                                 sessionClient, domain + "." + event.name, struct);
                 if (event.description != null) {
                     onEventSpec.addJavadoc(event.description.replace("$", "$$") + "\n");
                 }
+                onEventSpec.addJavadoc("\n@return a handle for removing the listener\n");
                 builder.addMethod(onEventSpec.build());
 
                 MethodSpec.Builder onEventListener = MethodSpec.methodBuilder("on" + Codegen.cap(event.name))
@@ -108,6 +113,19 @@ public class Domain {
                     onEventListener.addJavadoc(event.description.replace("$", "$$") + "\n");
                 }
                 builder.addMethod(onEventListener.build());
+
+                MethodSpec.Builder eventPublisher = MethodSpec.methodBuilder(event.name + "Events")
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(ParameterizedTypeName.get(ClassName.get(EventStreamOptions.class), struct), "options")
+                        .returns(ParameterizedTypeName.get(ClassName.get(Flow.Publisher.class), struct))
+                        .addStatement("return $N.eventPublisher($S, $T.class, options)",
+                                sessionClient, domain + "." + event.name, struct);
+                if (event.description != null) {
+                    eventPublisher.addJavadoc(event.description.replace("$", "$$") + "\n");
+                }
+                eventPublisher.addJavadoc("\n@param options buffering options for each subscriber\n")
+                        .addJavadoc("@return a publisher delivering the events as requested by the subscriber\n");
+                builder.addMethod(eventPublisher.build());
             }
         }
     }
@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import javax.lang.model.element.Modifier;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import static no.nb.nna.veidemann.chrome.codegen.Codegen.PACKAGE;
 
@@ -80,5 +81,16 @@ public class EntryPoint {
                 .addStatement("return super.connect($N, new $T())", config, BrowserClient.type);
 
         classBuilder.addMethod(init.build());
+
+        MethodSpec.Builder connectAsync = MethodSpec.methodBuilder("connectAsync")
+                .addModifiers(Modifier.PUBLIC)
+                .returns(ParameterizedTypeName.get(ClassName.get(CompletableFuture.class), BrowserClient.type))
+                .addParameter(config.type, config.name, Modifier.FINAL)
+                .addStatement("return super.connectAsync($N, new $T())", config, BrowserClient.type)
+                .addJavadoc("Connect to a browser without blocking.\n")
+                .addJavadoc("\n@param $N the connection config\n", config)
+                .addJavadoc("@return a future completed with the connected client\n");
+
+        classBuilder.addMethod(connectAsync.build());
     }
 }
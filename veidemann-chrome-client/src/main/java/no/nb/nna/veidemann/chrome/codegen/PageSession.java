@@ -25,6 +25,7 @@ import com.squareup.javapoet.TypeSpec;
 import no.nb.nna.veidemann.chrome.client.BrowserClientBase.BrowserPage;
 import no.nb.nna.veidemann.chrome.client.ClientClosedException;
 import no.nb.nna.veidemann.chrome.client.SessionClosedException;
+import no.nb.nna.veidemann.chrome.client.ws.CdpInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,6 +73,7 @@ public class PageSession {
     static void generate(List<Domain> domains, File outdir) throws IOException {
         PageSession s = new PageSession(domains, outdir);
         s.genConstructor();
+        s.genOpenStreamMethod();
         s.genCloseMethod();
         s.genToStringAndVersionMethods();
 
@@ -83,18 +85,39 @@ public class PageSession {
         }
     }
 
+    /**
+     * Generate the constructor and the domain accessors.
+     * <p>
+     * Domain objects are created on first access, so a page only pays for the domains it uses.
+     */
     void genConstructor() {
         MethodSpec.Builder constructor = MethodSpec.constructorBuilder()
                 .addParameter(entryPoint.type, entryPoint.name, Modifier.FINAL)
                 .addParameter(sessionClient.type, sessionClient.name, Modifier.FINAL)
                 .addStatement("this.$1N = $1N", entryPoint)
-                .addStatement("this.$1N = $1N", sessionClient)
-                .addCode("\n");
+                .addStatement("this.$1N = $1N", sessionClient);
+
+        ParameterSpec domainName = ParameterSpec.builder(String.class, "domainName").build();
+        MethodSpec checkOpen = MethodSpec.methodBuilder("checkOpen")
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(domainName)
+                .addException(ClientClosedException.class)
+                .addException(SessionClosedException.class)
+                .beginControlFlow("if ($N.isClosed())", entryPoint)
+                .addStatement("$N.info(\"Accessing {} on closed client. {}\", $N, $N.$N.getClosedReason())", logger, domainName, entryPoint, protocolClient)
+                .addStatement("throw new $T($N.$N.getClosedReason())", ClientClosedException.class, entryPoint, protocolClient)
+                .endControlFlow()
+                .beginControlFlow("if ($N.isClosed())", sessionClient)
+                .addStatement("$N.info(\"Accessing {} on closed session. {}\", $N, $N.getClosedReason())", logger, domainName, sessionClient)
+                .addStatement("throw new $T($N.getClosedReason())", SessionClosedException.class, sessionClient)
+                .endControlFlow()
+                .build();
+        classBuilder.addMethod(checkOpen);
 
         for (Domain domain : domains) {
             if (!"Target".equals(domain.domain) && !"Browser".equals(domain.domain)) {
                 FieldSpec.Builder fieldBuilder = FieldSpec
-                        .builder(domain.className, Codegen.uncap(domain.domain), Modifier.PRIVATE, Modifier.FINAL);
+                        .builder(domain.className, Codegen.uncap(domain.domain), Modifier.PRIVATE, Modifier.VOLATILE);
                 if (domain.description != null) {
                     fieldBuilder.addJavadoc(domain.description + "\n");
                 }
@@ -102,22 +125,22 @@ public class PageSession {
                 FieldSpec field = fieldBuilder.build();
                 classBuilder.addField(field);
 
-                constructor.addStatement("$N = new $T($N)", field, field.type, sessionClient);
-
                 classBuilder.addMethod(MethodSpec.methodBuilder(Codegen.uncap(domain.domain))
                         .addModifiers(PUBLIC)
                         .addException(ClientClosedException.class)
                         .addException(SessionClosedException.class)
                         .returns(field.type)
-                        .beginControlFlow("if ($N.isClosed())", entryPoint)
-                        .addStatement("$N.info(\"Accessing $T on closed client. {}\", $N.$N.getClosedReason())", logger, domain.className, entryPoint, protocolClient)
-                        .addStatement("throw new $T($N.$N.getClosedReason())", ClientClosedException.class, entryPoint, protocolClient)
+                        .addStatement("$N($S)", checkOpen, domain.javaName)
+                        .addStatement("$T result = $N", field.type, field)
+                        .beginControlFlow("if (result == null)")
+                        .beginControlFlow("synchronized (this)")
+                        .addStatement("result = $N", field)
+                        .beginControlFlow("if (result == null)")
+                        .addStatement("$N = result = new $T($N)", field, field.type, sessionClient)
                         .endControlFlow()
-                        .beginControlFlow("if ($N.isClosed())", sessionClient)
-                        .addStatement("$N.info(\"Accessing $T on closed session. {}\", $N.getClosedReason())", logger, domain.className, sessionClient)
-                        .addStatement("throw new $T($N.getClosedReason())", SessionClosedException.class, sessionClient)
                         .endControlFlow()
-                        .addStatement("return $N", field)
+                        .endControlFlow()
+                        .addStatement("return result")
                         .addJavadoc("Get the $N domain.\n<p>\n", domain.domain)
                         .addJavadoc(domain.description == null ? "" : domain.description.replace("$", "$$") + "\n")
                         .addJavadoc("\n@return the $N domain\n", domain.domain)
@@ -128,6 +151,20 @@ public class PageSession {
         classBuilder.addMethod(constructor.build());
     }
 
+    void genOpenStreamMethod() {
+        ParameterSpec handle = ParameterSpec.builder(String.class, "handle", Modifier.FINAL).build();
+        classBuilder.addMethod(MethodSpec.methodBuilder("openStream")
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(handle)
+                .returns(CdpInputStream.class)
+                .addStatement("return $N.openStream($N)", sessionClient, handle)
+                .addJavadoc("Open a stream returned by a command run with {@code transferMode: ReturnAsStream}, like\n")
+                .addJavadoc("{@code page().printToPDF().withTransferMode(\"ReturnAsStream\")}.\n")
+                .addJavadoc("\n@param $N the stream handle\n", handle)
+                .addJavadoc("@return an input stream reading the data in chunks. Closing it releases the handle\n")
+                .build());
+    }
+
     void genCloseMethod() {
         classBuilder.addMethod(MethodSpec.methodBuilder("close")
                 .addModifiers(Modifier.PUBLIC)
@@ -22,7 +22,15 @@ import javax.annotation.Generated;
 import java.io.File;
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -33,6 +41,11 @@ public class Protocol {
 
     static final String INDENT = "    ";
 
+    /**
+     * Domains used by the generated BrowserClient, which are always generated.
+     */
+    static final List<String> REQUIRED_DOMAINS = Arrays.asList("Target", "Browser", "Security");
+
     void gencode(File outdir) throws IOException {
         AnnotationSpec generatedAnnotation = AnnotationSpec.builder(Generated.class)
                 .addMember("value", "$S", Codegen.class.getCanonicalName()).addMember("date", "$S", Instant.now()
@@ -78,4 +91,56 @@ public class Protocol {
         domains.addAll(other.domains);
     }
 
+    /**
+     * Remove all domains except the wanted ones, the ones they reference types from and the required ones.
+     *
+     * @param wanted names of the domains to keep
+     * @throws IllegalArgumentException if a wanted domain does not exist
+     */
+    public void retainDomains(Set<String> wanted) {
+        Set<String> retained = new LinkedHashSet<>();
+        Deque<String> pending = new ArrayDeque<>(REQUIRED_DOMAINS);
+        pending.addAll(wanted);
+        while (!pending.isEmpty()) {
+            String name = pending.pop();
+            if (retained.add(name)) {
+                pending.addAll(referencedDomains(domain(name)));
+            }
+        }
+        domains.removeIf(d -> !retained.contains(d.domain));
+    }
+
+    public List<String> domainNames() {
+        return domains.stream().map(d -> d.domain).collect(Collectors.toList());
+    }
+
+    private static Set<String> referencedDomains(Domain domain) {
+        Set<String> result = new HashSet<>();
+        addReferencedDomains(domain.types, result);
+        for (List<Command> commands : Arrays.asList(domain.commands, domain.events)) {
+            if (commands != null) {
+                for (Command c : commands) {
+                    addReferencedDomains(c.parameters, result);
+                    addReferencedDomains(c.returns, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void addReferencedDomains(List<Parameter> parameters, Set<String> result) {
+        if (parameters == null) {
+            return;
+        }
+        for (Parameter p : parameters) {
+            if (p.$ref != null && p.$ref.contains(".")) {
+                result.add(p.$ref.substring(0, p.$ref.indexOf('.')));
+            }
+            if (p.items != null) {
+                addReferencedDomains(Collections.singletonList(p.items), result);
+            }
+            addReferencedDomains(p.properties, result);
+        }
+    }
+
 }
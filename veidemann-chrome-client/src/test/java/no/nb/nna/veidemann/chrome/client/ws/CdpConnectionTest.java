@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.chrome.client.ws;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CdpConnectionTest {
+
+    private static final int ROUNDS = 1000;
+
+    @Test
+    public void backoffDelayIsBoundedByExponentialLimit() {
+        for (int attempt = 0; attempt < 5; attempt++) {
+            long limit = 100L << attempt;
+            for (int i = 0; i < ROUNDS; i++) {
+                assertThat(CdpConnection.backoffDelay(attempt, 100L, 60000L))
+                        .as("attempt %s", attempt)
+                        .isBetween(0L, limit);
+            }
+        }
+    }
+
+    @Test
+    public void backoffDelayUsesWholeRange() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long delay = CdpConnection.backoffDelay(3, 100L, 60000L);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertThat(min).isLessThan(200L);
+        assertThat(max).isGreaterThan(600L);
+    }
+
+    @Test
+    public void backoffDelayIsClampedToMax() {
+        for (int attempt : new int[]{10, 30, 31, 62, 63, 64, Integer.MAX_VALUE}) {
+            for (int i = 0; i < ROUNDS; i++) {
+                assertThat(CdpConnection.backoffDelay(attempt, 100L, 5000L))
+                        .as("attempt %s", attempt)
+                        .isBetween(0L, 5000L);
+            }
+        }
+    }
+
+    @Test
+    public void backoffDelayIsClampedWhenLimitOverflows() {
+        for (int i = 0; i < ROUNDS; i++) {
+            assertThat(CdpConnection.backoffDelay(30, Long.MAX_VALUE / 2, 5000L)).isBetween(0L, 5000L);
+        }
+    }
+
+    @Test
+    public void backoffDelayIsZeroWhenMaxIsZero() {
+        assertThat(CdpConnection.backoffDelay(5, 100L, 0L)).isZero();
+    }
+}
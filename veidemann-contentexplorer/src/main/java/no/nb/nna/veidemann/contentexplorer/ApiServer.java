@@ -43,6 +43,19 @@ public class ApiServer {
 
         LOG.info("Starting server listening on port {}.", port);
         URI baseUri = UriBuilder.fromUri("http://0.0.0.0/").port(port).build();
+        final WarcIndexManager indexManager =
+                new WarcIndexManager(warcDir, new File(ContentExplorer.getSettings().getIndexDir()),
+                        ContentExplorer.getSettings().getMaxCachedIndexes());
+        final WarcFileCache fileCache =
+                new WarcFileCache(indexManager, ContentExplorer.getSettings().getMaxOpenWarcFiles());
+        final WarcDirectory warcDirectory = new WarcDirectory(warcDir);
+        final RecordLocator recordLocator = new RecordLocator(warcDirectory, indexManager);
+        final RequestExecutor requestExecutor = new RequestExecutor(ContentExplorer.getSettings().getLookupThreads(),
+                ContentExplorer.getSettings().getScanThreads(), ContentExplorer.getSettings().getMaxQueuedRequests());
+        final PayloadCache payloadCache = new PayloadCache(ContentExplorer.getSettings().getPayloadCacheSize().toBytes(),
+                ContentExplorer.getSettings().getMaxCachedPayloadSize().toBytes());
+        final WarcValidator warcValidator =
+                new WarcValidator(indexManager, fileCache, ContentExplorer.getSettings().getValidatorThreads());
         ResourceConfig resourceConfig = new ResourceConfig()
                 .register(ContentExplorerResource.class)
                 .register(new AbstractBinder() {
@@ -51,6 +64,19 @@ public class ApiServer {
                         bind(warcDir);
                     }
 
+                })
+                .register(new AbstractBinder() {
+                    @Override
+                    protected void configure() {
+                        bind(warcDirectory);
+                        bind(indexManager);
+                        bind(fileCache);
+                        bind(recordLocator);
+                        bind(requestExecutor);
+                        bind(payloadCache);
+                        bind(warcValidator);
+                    }
+
                 })
                 .register(new AbstractBinder() {
                     @Override
@@ -65,6 +91,11 @@ public class ApiServer {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             LOG.info("Shutting down server.");
             server.shutdownNow();
+            requestExecutor.close();
+            warcValidator.close();
+            recordLocator.close();
+            indexManager.close();
+            warcDirectory.close();
         }));
     }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/**
+ * A single byte range from a HTTP Range header.
+ * <p>
+ * Multiple ranges are not supported. A header asking for more than one range is ignored, which per RFC 7233 means
+ * the whole entity is returned.
+ */
+public class ByteRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long start;
+
+    private final long end;
+
+    private final long total;
+
+    private ByteRange(long start, long end, long total) {
+        this.start = start;
+        this.end = end;
+        this.total = total;
+    }
+
+    /**
+     * Parse a Range header.
+     *
+     * @param header the value of the Range header, might be null
+     * @param total  the length of the entity
+     * @return the requested range or null if the whole entity should be returned, which is also the case if the
+     *         header is invalid
+     * @throws WebApplicationException with status 416 if the range can not be satisfied
+     */
+    public static ByteRange parse(String header, long total) {
+        if (header == null || !header.startsWith(BYTES_UNIT) || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring(BYTES_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        long start;
+        long end;
+        try {
+            if (dash == 0) {
+                // Suffix range, the last n bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    throw notSatisfiable(total);
+                }
+                start = Math.max(0, total - suffix);
+                end = total - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                if (dash == spec.length() - 1) {
+                    end = total - 1;
+                } else {
+                    long last = Long.parseLong(spec.substring(dash + 1));
+                    if (last < start) {
+                        // Syntactically invalid, the header is ignored
+                        return null;
+                    }
+                    end = Math.min(last, total - 1);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (start >= total || start > end) {
+            throw notSatisfiable(total);
+        }
+        return new ByteRange(start, end, total);
+    }
+
+    private static WebApplicationException notSatisfiable(long total) {
+        return new WebApplicationException(Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header("Content-Range", "bytes */" + total)
+                .build());
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Get the value for the Content-Range header of a partial response.
+     *
+     * @return the header value
+     */
+    public String toContentRange() {
+        return "bytes " + start + "-" + end + "/" + total;
+    }
+}
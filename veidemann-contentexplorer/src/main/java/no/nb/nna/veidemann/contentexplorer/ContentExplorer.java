@@ -19,6 +19,8 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigBeanFactory;
 import com.typesafe.config.ConfigException;
 import com.typesafe.config.ConfigFactory;
+import io.prometheus.client.exporter.HTTPServer;
+import io.prometheus.client.hotspot.DefaultExports;
 import no.nb.nna.veidemann.commons.db.DbService;
 import no.nb.nna.veidemann.commons.opentracing.TracerFactory;
 import no.nb.nna.veidemann.contentexplorer.settings.Settings;
@@ -26,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * Class for launching the service.
@@ -57,6 +60,14 @@ public class ContentExplorer {
      * @return this instance
      */
     public ContentExplorer start() {
+        DefaultExports.initialize();
+        try {
+            HTTPServer server = new HTTPServer(SETTINGS.getPrometheusPort());
+        } catch (IOException ex) {
+            System.err.println("Could not start Prometheus exporter: " + ex.getLocalizedMessage());
+            System.exit(3);
+        }
+
         try (DbService db = DbService.configure(SETTINGS)) {
             ApiServer apiServer = new ApiServer(new File(SETTINGS.getWarcDir()));
 
@@ -17,38 +17,62 @@ package no.nb.nna.veidemann.contentexplorer;
 
 import com.google.common.io.ByteStreams;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
 import no.nb.nna.veidemann.commons.db.ExecutionsAdapter;
+import org.jwat.common.HttpHeader;
 import org.jwat.warc.WarcReader;
 import org.jwat.warc.WarcReaderFactory;
 import org.jwat.warc.WarcRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
+import javax.ws.rs.POST;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Spliterators;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 /**
  *
@@ -58,15 +82,51 @@ public class ContentExplorerResource {
 
     private static final Logger LOG = LoggerFactory.getLogger(ContentExplorerResource.class);
 
+    private static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+
+    private static final String WARC_MEDIA_TYPE = "application/warc";
+
+    private static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+    private static final int DEFAULT_TOC_LIMIT = 1000;
+
+    private static final int MAX_RESOLVE_BATCH = 100000;
+
+    private static final int MAX_TOC_LIMIT = 10000;
+
     @Context
     ExecutionsAdapter db;
 
     @Context
     File warcDir;
 
+    @Context
+    WarcDirectory warcDirectory;
+
+    @Context
+    WarcIndexManager indexManager;
+
+    @Context
+    WarcFileCache fileCache;
+
+    @Context
+    RecordLocator recordLocator;
+
+    @Context
+    RequestExecutor requestExecutor;
+
+    @Context
+    PayloadCache payloadCache;
+
+    @Context
+    WarcValidator warcValidator;
+
     @Context
     UriInfo uriInfo;
 
+    @Context
+    Request request;
+
     private static final String htmlHeader = "<html><head>"
             + "<title>WARC files</title>"
             + "<style type=\"text/css\">"
@@ -86,25 +146,48 @@ public class ContentExplorerResource {
     @GET
     @Path("warcs")
     @Produces(MediaType.APPLICATION_JSON)
-    public String getFilesJson() {
-        List<WarcFileDescriptor> files = Arrays.stream(warcDir.listFiles())
+    public Response getFilesJson(@QueryParam("match") String match,
+                                 @QueryParam("offset") @DefaultValue("0") int offset,
+                                 @QueryParam("limit") Integer limit) {
+        WarcDirectory.Listing listing = warcDirectory.getListing();
+        EntityTag etag = new EntityTag(listing.getVersion() + "-json");
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        List<WarcDirectory.WarcFileInfo> matching = listing.getFiles(compileMatch(match));
+        List<WarcFileDescriptor> files = page(matching, offset, limit).stream()
                 .map(f -> new WarcFileDescriptor(f.getName(),
-                        f.length(), uriInfo.getPath() + "/" + f.getName()))
+                        f.getSize(), uriInfo.getPath() + "/" + f.getName()))
                 .collect(Collectors.toList());
         Gson gson = new Gson();
-        return gson.toJson(files);
+        return Response.ok(gson.toJson(files), MediaType.APPLICATION_JSON_TYPE)
+                .tag(etag)
+                .header(TOTAL_COUNT_HEADER, matching.size())
+                .build();
     }
 
     @GET
     @Path("warcs")
     @Produces(MediaType.TEXT_HTML)
-    public String getFilesHtml() {
+    public Response getFilesHtml(@QueryParam("match") String match,
+                                 @QueryParam("offset") @DefaultValue("0") int offset,
+                                 @QueryParam("limit") Integer limit) {
+        WarcDirectory.Listing listing = warcDirectory.getListing();
+        EntityTag etag = new EntityTag(listing.getVersion() + "-html");
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        List<WarcDirectory.WarcFileInfo> matching = listing.getFiles(compileMatch(match));
         StringBuilder html = new StringBuilder(htmlHeader)
                 .append("<h3>WARC files</h3>")
                 .append("<table><tr><th>Name</th><th>Size</th><th>Table of contents</th></tr>");
 
         String path = "/" + (uriInfo.getPath().endsWith("/") ? uriInfo.getPath() : uriInfo.getPath() + "/");
-        Arrays.stream(warcDir.listFiles())
+        page(matching, offset, limit)
                 .forEach(f -> {
                     String fileUrl = path + f.getName();
                     html.append("<tr><th><a href='")
@@ -112,7 +195,7 @@ public class ContentExplorerResource {
                             .append("'>")
                             .append(f.getName())
                             .append("</a></th><th>")
-                            .append(f.length())
+                            .append(f.getSize())
                             .append("</th><th><a href='")
                             .append(fileUrl).append("/toc")
                             .append("'>")
@@ -120,266 +203,735 @@ public class ContentExplorerResource {
                             .append("</a></th></tr>");
                 });
         html.append("</table>");
-        return html.append(htmlFooter).toString();
+        return Response.ok(html.append(htmlFooter).toString(), MediaType.TEXT_HTML_TYPE)
+                .tag(etag)
+                .header(TOTAL_COUNT_HEADER, matching.size())
+                .build();
+    }
+
+    private static Pattern compileMatch(String match) {
+        if (match == null || match.isEmpty()) {
+            return null;
+        }
+        try {
+            return Pattern.compile(match);
+        } catch (PatternSyntaxException ex) {
+            throw new WebApplicationException("Illegal match pattern: " + ex.getDescription(), Status.BAD_REQUEST);
+        }
+    }
+
+    private static <T> List<T> page(List<T> list, int offset, Integer limit) {
+        if (offset < 0 || (limit != null && limit < 0)) {
+            throw new WebApplicationException("offset and limit can not be negative", Status.BAD_REQUEST);
+        }
+        int start = Math.min(offset, list.size());
+        int end = limit == null ? list.size() : (int) Math.min((long) start + limit, list.size());
+        return list.subList(start, end);
     }
 
     @GET
     @Path("warcs/{fileName}")
-    public File getFile(@PathParam("fileName") String fileName) {
-        return new File(warcDir, fileName);
+    public void getFile(@PathParam("fileName") String fileName,
+                        @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.SCAN, "file", () -> new File(warcDir, fileName));
     }
 
     @GET
     @Path("warcs/{fileName}/toc")
     @Produces(MediaType.TEXT_HTML)
-    public String getFileToc(@PathParam("fileName") String fileName) {
-        StringBuilder html = new StringBuilder(htmlHeader)
-                .append("<h3>Table of contents for ")
-                .append(fileName)
-                .append("</h3><table><tr><th>ID</th><th>Type</th><th>WARC Headers</th><th>HTTP Headers</th><th>URI</th></tr>");
-
+    public void getFileToc(@PathParam("fileName") String fileName,
+                           @QueryParam("offset") @DefaultValue("0") int offset,
+                           @QueryParam("limit") @DefaultValue("" + DEFAULT_TOC_LIMIT) int limit,
+                           @Suspended AsyncResponse response) {
+        // Request scoped context is not available on the I/O thread
         String path = "/" + (uriInfo.getPath().replaceFirst("/toc/?", "/"));
-        try (Stream<WarcRecord> s = getRecords(fileName);) {
-            s.forEach(r -> {
-                String recordUrl;
-                try {
-                    recordUrl = path + URLEncoder.encode(r.header.warcRecordIdStr, "UTF-8");
-                } catch (UnsupportedEncodingException ex) {
-                    throw new RuntimeException(ex);
+        String tocUrl = "/" + uriInfo.getPath();
+        requestExecutor.submit(response, RequestExecutor.Pool.SCAN, "toc", () -> {
+            WarcIndex index = getIndex(fileName);
+            int total = index.size();
+            List<WarcIndexEntry> page = index.getEntries(offset, clampLimit(limit));
+
+            StreamingOutput body = output -> {
+                Writer html = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                html.append(htmlHeader)
+                        .append("<h3>Table of contents for ")
+                        .append(fileName)
+                        .append("</h3><p>Records ")
+                        .append(String.valueOf(page.isEmpty() ? 0 : offset + 1))
+                        .append(" - ")
+                        .append(String.valueOf(offset + page.size()))
+                        .append(" of ")
+                        .append(String.valueOf(total));
+                if (offset > 0) {
+                    html.append(" <a href='").append(tocUrl).append("?offset=")
+                            .append(String.valueOf(Math.max(0, offset - limit))).append("&limit=")
+                            .append(String.valueOf(limit)).append("'>previous</a>");
+                }
+                if (offset + page.size() < total) {
+                    html.append(" <a href='").append(tocUrl).append("?offset=")
+                            .append(String.valueOf(offset + page.size())).append("&limit=")
+                            .append(String.valueOf(limit)).append("'>next</a>");
                 }
-                html.append("<tr><td><a href='")
-                        .append(recordUrl)
-                        .append("'>")
-                        .append(r.header.warcRecordIdStr.replace("<", "&lt;"))
-                        .append("</a></td><td>")
-                        .append(r.header.warcTypeStr)
-                        .append("</td><td><a href='")
-                        .append(recordUrl).append("/warcheader")
-                        .append("'>")
-                        .append("warcheader</a></td>");
-                r.getPayload();
-                System.out
-                        .println("ID: " + r.header.warcRecordIdStr + ", Payload: " + r.hasPayload() + ", HTTP: " + (r
-                                .getHttpHeader() != null));
-                if (r.getHttpHeader() != null) {
-                    html.append("<td><a href='")
-                            .append(recordUrl).append("/httpheader")
+                html.append("</p><table><tr><th>ID</th><th>Type</th><th>WARC Headers</th><th>HTTP Headers</th><th>URI</th></tr>");
+
+                for (WarcIndexEntry e : page) {
+                    if (e.getRecordId() == null) {
+                        continue;
+                    }
+                    String recordUrl = path + URLEncoder.encode(e.getRecordId(), "UTF-8");
+                    html.append("<tr><td><a href='")
+                            .append(recordUrl)
                             .append("'>")
-                            .append("http header")
-                            .append("</a></td>");
-                } else {
-                    html.append("</td>");
+                            .append(e.getRecordId().replace("<", "&lt;"))
+                            .append("</a></td><td>")
+                            .append(e.getType())
+                            .append("</td><td><a href='")
+                            .append(recordUrl).append("/warcheader")
+                            .append("'>")
+                            .append("warcheader</a></td>");
+                    if (e.hasHttpHeader()) {
+                        html.append("<td><a href='")
+                                .append(recordUrl).append("/httpheader")
+                                .append("'>")
+                                .append("http header")
+                                .append("</a></td>");
+                    } else {
+                        html.append("<td></td>");
+                    }
+                    html.append("<td>")
+                            .append(e.getTargetUri() == null ? "" : e.getTargetUri())
+                            .append("</td>");
+                    html.append("</tr>");
                 }
-                html.append("<td>")
-                        .append(r.header.warcTargetUriStr)
-                        .append("</td>");
-                html.append("</tr>");
-            });
-        } catch (Exception ex) {
-            LOG.error(ex.toString(), ex);
-            throw new WebApplicationException(ex, 404);
-        }
-        html.append("</table>");
-        return html.append(htmlFooter).toString();
+                html.append("</table>").append(htmlFooter);
+                html.flush();
+            };
+            return Response.ok(body, MediaType.TEXT_HTML_TYPE.withCharset("UTF-8")).build();
+        });
     }
 
     @GET
-    @Path("warcs/{fileName}/{id}/warcheader")
-    @Produces(MediaType.TEXT_HTML)
-    public String getWarcHeader(@PathParam("fileName") String fileName, @PathParam("id") String id) {
-        StringBuilder html = new StringBuilder(htmlHeader)
-                .append("<h3>WARC headers for ")
-                .append(fileName).append(" :: ").append(id.replaceAll("<", "&lt;"))
-                .append("</h3><pre>");
-
-        try (Stream<WarcRecord> s = getRecords(fileName);) {
-            s.filter(r -> id.equals(r.header.warcRecordIdStr))
-                    .forEach(r -> {
-                        html.append(new String(r.header.headerBytes, StandardCharsets.UTF_8).replaceAll("<", "&lt;"));
-                    });
-        } catch (Exception ex) {
-            LOG.error(ex.toString(), ex);
-            throw new WebApplicationException(ex, 404);
-        }
-        html.append("</pre>");
-        return html.append(htmlFooter).toString();
+    @Path("warcs/{fileName}/toc")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getFileTocJson(@PathParam("fileName") String fileName,
+                               @QueryParam("offset") @DefaultValue("0") int offset,
+                               @QueryParam("limit") @DefaultValue("" + DEFAULT_TOC_LIMIT) int limit,
+                               @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.SCAN, "toc", () -> {
+            WarcIndex index = getIndex(fileName);
+            int total = index.size();
+            List<WarcIndexEntry> page = index.getEntries(offset, clampLimit(limit));
+
+            StreamingOutput body = output -> {
+                JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+                json.beginObject()
+                        .name("fileName").value(index.getFileName())
+                        .name("total").value(total)
+                        .name("offset").value(offset)
+                        .name("limit").value(limit)
+                        .name("records").beginArray();
+                for (WarcIndexEntry e : page) {
+                    json.beginObject()
+                            .name("id").value(e.getRecordId())
+                            .name("type").value(e.getType())
+                            .name("offset").value(e.getOffset())
+                            .name("length").value(e.getLength())
+                            .name("targetUri").value(e.getTargetUri())
+                            .name("contentType").value(e.getContentType())
+                            .name("httpHeader").value(e.hasHttpHeader())
+                            .endObject();
+                }
+                json.endArray().endObject();
+                json.flush();
+            };
+            return Response.ok(body, MediaType.APPLICATION_JSON_TYPE).build();
+        });
     }
 
+    /**
+     * Export the records in a WARC file which match a filter.
+     * <p>
+     * Records are selected using the index, so records which do not match are never read. With format 'warc' the
+     * matching records are copied unchanged from the file, gzip members included. With format 'ndjson' one JSON object
+     * with the indexed metadata is written per record, optionally with all WARC header fields.
+     */
     @GET
-    @Path("warcs/{fileName}/{id}/httpheader")
-    @Produces(MediaType.TEXT_HTML)
-    public String getHttpHeader(@PathParam("fileName") String fileName, @PathParam("id") String id) {
-        StringBuilder html = new StringBuilder(htmlHeader)
-                .append("<h3>HTTP headers for ")
-                .append(fileName).append(" :: ").append(id.replaceAll("<", "&lt;"))
-                .append("</h3><pre>");
-
-        try (Stream<WarcRecord> s = getRecords(fileName);) {
-            s.filter(r -> id.equals(r.header.warcRecordIdStr))
-                    .forEach(r -> {
-                        html.append("<pre>").append(new String(r.getHttpHeader().getHeader()).replaceAll("<", "&lt;")).append("</pre>");
-                    });
-        } catch (Exception ex) {
-            LOG.error(ex.toString(), ex);
-            throw new WebApplicationException(ex, 404);
-        }
-        html.append("</pre>");
-        return html.append(htmlFooter).toString();
-    }
+    @Path("warcs/{fileName}/export")
+    public void exportRecords(@PathParam("fileName") String fileName,
+                              @QueryParam("type") List<String> types,
+                              @QueryParam("uriPrefix") String uriPrefix,
+                              @QueryParam("uriRegex") String uriRegex,
+                              @QueryParam("from") String from,
+                              @QueryParam("to") String to,
+                              @QueryParam("contentType") String contentType,
+                              @QueryParam("format") @DefaultValue("warc") String format,
+                              @QueryParam("fullHeaders") @DefaultValue("false") boolean fullHeaders,
+                              @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.SCAN, "export", () -> {
+            ExportFilter filter = new ExportFilter(types, uriPrefix, uriRegex, from, to, contentType);
+            WarcIndex index = getIndex(fileName);
+            List<WarcIndexEntry> matching = index.getEntries().stream()
+                    .filter(filter)
+                    .collect(Collectors.toList());
 
-    @GET
-    @Path("warcs/{fileName}/{id}")
-//    @Produces(MediaType.TEXT_PLAIN)
-    public Response getContent(@PathParam("fileName") String fileName, @PathParam("id") String id) {
-        try (Stream<WarcRecord> s = getRecords(fileName);) {
-            List<Response> resp = s.filter(r -> id.equals(r.header.warcRecordIdStr))
-                    .map(r -> {
-                        String type = MediaType.TEXT_PLAIN;
-                        if (r.getHttpHeader() != null) {
-                            type = r.getHttpHeader().getHeader("content-type").value;
+            switch (format) {
+                case "warc":
+                    long length = matching.stream().mapToLong(WarcIndexEntry::getLength).sum();
+                    String exportName = fileName.replaceFirst("\\.warc(\\.gz)?(\\.open)?$", "") + "-export"
+                            + (index.isCompressed() ? ".warc.gz" : ".warc");
+                    return Response.ok((StreamingOutput) output -> {
+                        try (WarcFileCache.Lease lease = fileCache.acquire(fileName)) {
+                            for (WarcIndexEntry e : matching) {
+                                transfer(lease, e.getOffset(), e.getLength(), output);
+                            }
                         }
-                        System.out.println("ID: " + r.header.warcRecordIdStr);
-                        System.out.println("TYPE: " + type);
-                        System.out.println("HAS PAYLOAD: " + r.hasPayload());
-                        System.out.println("HAS HTTP: " + (r.getHttpHeader() != null));
-
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        try {
-                            ByteStreams.copy(r.getPayloadContent(), baos);
-                        } catch (IOException ex) {
-                            LOG.error(ex.toString(), ex);
-                            throw new RuntimeException(ex);
+                    }, WARC_MEDIA_TYPE)
+                            .header(HttpHeaders.CONTENT_LENGTH, length)
+                            .header("Content-Disposition", "attachment; filename=\"" + exportName + "\"")
+                            .build();
+                case "ndjson":
+                    return Response.ok((StreamingOutput) output -> {
+                        Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                        // Headers are read directly, caching the headers of every record in a file would only
+                        // evict useful entries from the payload cache
+                        try (WarcFileCache.Lease lease = fullHeaders ? fileCache.acquire(fileName) : null) {
+                            for (WarcIndexEntry e : matching) {
+                                JsonWriter json = new JsonWriter(out);
+                                json.beginObject()
+                                        .name("id").value(e.getRecordId())
+                                        .name("type").value(e.getType())
+                                        .name("date")
+                                        .value(e.getDate() < 0 ? null : Instant.ofEpochMilli(e.getDate()).toString())
+                                        .name("targetUri").value(e.getTargetUri())
+                                        .name("contentType").value(e.getContentType())
+                                        .name("storageRef").value(PayloadCache.key(fileName, e.getOffset()))
+                                        .name("length").value(e.getLength())
+                                        .name("payloadLength").value(e.getPayloadLength());
+                                if (fullHeaders) {
+                                    json.name("warcHeader").beginObject();
+                                    writeHeaderFields(json, readWarcHeader(lease, e.getOffset()));
+                                    json.endObject();
+                                }
+                                json.endObject();
+                                json.flush();
+                                out.write('\n');
+                            }
                         }
+                        out.flush();
+                    }, NDJSON_MEDIA_TYPE).build();
+                default:
+                    throw new WebApplicationException("Unknown format: " + format, Status.BAD_REQUEST);
+            }
+        });
+    }
 
-                        return Response.ok(baos.toByteArray(), type).build();
-//                        return Response.ok((StreamingOutput) (OutputStream output) -> {
-//                            ByteStreams.copy(r.getPayloadContent(), output);
-//                        }, type).build();
-                    })
-                    .collect(Collectors.toList());
-            return resp.get(0);
-        } catch (Exception ex) {
-            LOG.error(ex.toString(), ex);
-            throw new WebApplicationException(ex, 404);
-        }
+    /**
+     * Validate a WARC file and verify the block and payload digests of all its records.
+     */
+    @GET
+    @Path("warcs/{fileName}/validate")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void validateFile(@PathParam("fileName") String fileName,
+                             @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.SCAN, "validate", () -> {
+            getIndex(fileName);
+            return new Gson().toJson(warcValidator.validate(fileName));
+        });
     }
 
+    /**
+     * Validate all WARC files with names matching a regular expression.
+     * <p>
+     * Files are validated one at a time, each with its records verified in parallel.
+     */
     @GET
-    @Path("storageref/{ref}")
-    @Produces(MediaType.TEXT_PLAIN)
-    public Response getContentForRef(@PathParam("ref") String storageRef) {
-        try (WarcRecordContainer r = getRecord(storageRef);) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try {
-                ByteStreams.copy(r.warcRecord.getPayloadContent(), baos);
-            } catch (IOException ex) {
-                LOG.error(ex.toString(), ex);
-                throw new RuntimeException(ex);
+    @Path("validate")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void validateFiles(@QueryParam("match") String match,
+                              @Suspended AsyncResponse response) {
+        Pattern pattern = compileMatch(match);
+        requestExecutor.submit(response, RequestExecutor.Pool.SCAN, "validate", () -> {
+            List<WarcValidator.FileReport> reports = new ArrayList<>();
+            for (WarcDirectory.WarcFileInfo f : warcDirectory.getListing().getFiles(pattern)) {
+                try {
+                    reports.add(warcValidator.validate(f.getName()));
+                } catch (FileNotFoundException ex) {
+                    // Removed or closed since listing
+                    LOG.debug("Skipping {}: {}", f.getName(), ex.toString());
+                }
             }
+            return new Gson().toJson(reports);
+        });
+    }
 
-            String type = MediaType.TEXT_PLAIN;
-            return Response.ok(baos.toByteArray(), type).build();
-        } catch (Exception ex) {
-            LOG.error(ex.toString(), ex);
-            throw new WebApplicationException(ex, 404);
+    private static void writeHeaderFields(JsonWriter json, byte[] headerBlock) throws IOException {
+        for (String line : new String(headerBlock, StandardCharsets.UTF_8).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                json.name(line.substring(0, colon).trim()).value(line.substring(colon + 1).trim());
+            }
         }
     }
 
+    private WarcIndex getIndex(String fileName) {
+        try {
+            return indexManager.getIndex(fileName);
+        } catch (IOException ex) {
+            throw new WebApplicationException(ex, Status.NOT_FOUND);
+        }
+    }
+
+    private static int clampLimit(int limit) {
+        if (limit <= 0) {
+            throw new WebApplicationException("limit must be positive", Status.BAD_REQUEST);
+        }
+        return Math.min(limit, MAX_TOC_LIMIT);
+    }
+
     @GET
-    @Path("storageref/{ref}/warcheader")
+    @Path("warcs/{fileName}/{id}/warcheader")
     @Produces(MediaType.TEXT_HTML)
-    public String getWarcHeaderForRef(@PathParam("ref") String storageRef) {
-        try (WarcRecordContainer r = getRecord(storageRef);) {
+    public void getWarcHeader(@PathParam("fileName") String fileName, @PathParam("id") String id,
+                              @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.LOOKUP, "warcheader", () -> {
             StringBuilder html = new StringBuilder(htmlHeader)
                     .append("<h3>WARC headers for ")
-                    .append(storageRef.replaceAll("<", "&lt;"))
+                    .append(fileName).append(" :: ").append(id.replaceAll("<", "&lt;"))
                     .append("</h3><pre>");
 
-            html.append(new String(r.warcRecord.header.headerBytes, StandardCharsets.UTF_8).replaceAll("<", "&lt;"));
+            try {
+                PayloadCache.CachedRecord r = getHeaders(fileName, getIndexEntry(fileName, id).getOffset());
+                html.append(new String(r.getWarcHeader(), StandardCharsets.UTF_8).replaceAll("<", "&lt;"));
+            } catch (Exception ex) {
+                LOG.error(ex.toString(), ex);
+                throw new WebApplicationException(ex, 404);
+            }
             html.append("</pre>");
             return html.append(htmlFooter).toString();
-        } catch (Exception ex) {
-            LOG.error(ex.toString(), ex);
-            throw new WebApplicationException(ex, 404);
-        }
+        });
     }
 
     @GET
-    @Path("storageref/{ref}/httpheader")
+    @Path("warcs/{fileName}/{id}/httpheader")
     @Produces(MediaType.TEXT_HTML)
-    public String getHttpHeaderForRef(@PathParam("ref") String storageRef) {
-        try (WarcRecordContainer r = getRecord(storageRef);) {
+    public void getHttpHeader(@PathParam("fileName") String fileName, @PathParam("id") String id,
+                              @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.LOOKUP, "httpheader", () -> {
             StringBuilder html = new StringBuilder(htmlHeader)
                     .append("<h3>HTTP headers for ")
-                    .append(storageRef.replaceAll("<", "&lt;"))
+                    .append(fileName).append(" :: ").append(id.replaceAll("<", "&lt;"))
                     .append("</h3><pre>");
 
-            html.append(new String(r.warcRecord.getHttpHeader().getHeader()).replaceAll("<", "&lt;"));
+            try {
+                PayloadCache.CachedRecord r = getHeaders(fileName, getIndexEntry(fileName, id).getOffset());
+                html.append("<pre>").append(new String(getHttpHeader(r)).replaceAll("<", "&lt;")).append("</pre>");
+            } catch (Exception ex) {
+                LOG.error(ex.toString(), ex);
+                throw new WebApplicationException(ex, 404);
+            }
             html.append("</pre>");
             return html.append(htmlFooter).toString();
-        } catch (Exception ex) {
-            LOG.error(ex.toString(), ex);
-            throw new WebApplicationException(ex, 404);
+        });
+    }
+
+    @GET
+    @Path("warcs/{fileName}/{id}")
+    public void getContent(@PathParam("fileName") String fileName, @PathParam("id") String id,
+                           @HeaderParam("Range") String range,
+                           @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.LOOKUP, "content", () -> {
+            try {
+                WarcIndexEntry entry = getIndexEntry(fileName, id);
+                String type = MediaType.TEXT_PLAIN;
+                if (entry.hasHttpHeader() && entry.getContentType() != null) {
+                    type = entry.getContentType();
+                }
+                return payloadResponse(fileName, entry, type, range);
+            } catch (WebApplicationException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                LOG.error(ex.toString(), ex);
+                throw new WebApplicationException(ex, 404);
+            }
+        });
+    }
+
+    @GET
+    @Path("records/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void resolveRecord(@PathParam("id") String id,
+                              @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.LOOKUP, "records", () -> {
+            RecordLocator.Location location = recordLocator.resolve(id);
+            if (location == null) {
+                throw new WebApplicationException("Record not found: " + id, Status.NOT_FOUND);
+            }
+            StreamingOutput body = output -> {
+                JsonWriter json = new JsonWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                writeLocation(json.beginObject().name("id").value(id), location);
+                json.endObject();
+                json.flush();
+            };
+            return Response.ok(body, MediaType.APPLICATION_JSON_TYPE).build();
+        });
+    }
+
+    /**
+     * Resolve a batch of WARC-Record-IDs.
+     * <p>
+     * The request body is a JSON array of ids. The response is a JSON object with one entry per requested id. Ids which
+     * could not be resolved have the value null.
+     */
+    @POST
+    @Path("records")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void resolveRecords(String ids,
+                               @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.LOOKUP, "records", () -> {
+            List<String> recordIds;
+            try {
+                recordIds = Arrays.asList(new Gson().fromJson(ids, String[].class));
+            } catch (JsonParseException | NullPointerException ex) {
+                throw new WebApplicationException("Expected a JSON array of record ids", Status.BAD_REQUEST);
+            }
+            if (recordIds.size() > MAX_RESOLVE_BATCH) {
+                throw new WebApplicationException("Too many ids, max is " + MAX_RESOLVE_BATCH, Status.BAD_REQUEST);
+            }
+
+            Map<String, RecordLocator.Location> locations = recordLocator.resolve(recordIds);
+            StreamingOutput body = output -> {
+                JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+                json.beginObject();
+                for (Map.Entry<String, RecordLocator.Location> e : locations.entrySet()) {
+                    json.name(e.getKey());
+                    if (e.getValue() == null) {
+                        json.nullValue();
+                    } else {
+                        writeLocation(json.beginObject(), e.getValue());
+                        json.endObject();
+                    }
+                }
+                json.endObject();
+                json.flush();
+            };
+            return Response.ok(body, MediaType.APPLICATION_JSON_TYPE).build();
+        });
+    }
+
+    private static void writeLocation(JsonWriter json, RecordLocator.Location location) throws IOException {
+        json.name("fileName").value(location.getFileName())
+                .name("offset").value(location.getOffset())
+                .name("storageRef").value(location.toStorageRef());
+    }
+
+    @GET
+    @Path("storageref/{ref}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public void getContentForRef(@PathParam("ref") String storageRef, @HeaderParam("Range") String range,
+                                 @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.LOOKUP, "storageref", () -> {
+            try {
+                StorageRef ref = StorageRef.parse(storageRef);
+                WarcIndexEntry entry = indexManager.getStoredIndex(ref.fileName).getByOffset(ref.offset);
+                if (entry != null) {
+                    return payloadResponse(ref.fileName, entry, MediaType.TEXT_PLAIN, range);
+                }
+
+                // Not indexed yet. Index in the background and serve the record from a read of its headers.
+                indexManager.updateInBackground(ref.fileName);
+                WarcRecordContainer r = readRecord(ref.fileName, ref.offset);
+                final long payloadLength = WarcIndexEntry.payloadLength(r.warcRecord);
+                final ByteRange byteRange;
+                try {
+                    byteRange = ByteRange.parse(range, payloadLength);
+                } catch (RuntimeException ex) {
+                    r.close();
+                    throw ex;
+                }
+                final long start = byteRange == null ? 0L : byteRange.getStart();
+                final long length = byteRange == null ? payloadLength : byteRange.getLength();
+                return rangeResponse(output -> {
+                    try (WarcRecordContainer c = r) {
+                        InputStream payload = c.warcRecord.getPayloadContent();
+                        ByteStreams.skipFully(payload, start);
+                        ByteStreams.copy(ByteStreams.limit(payload, length), output);
+                    }
+                }, MediaType.TEXT_PLAIN, byteRange, length);
+            } catch (WebApplicationException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                LOG.error(ex.toString(), ex);
+                throw new WebApplicationException(ex, 404);
+            }
+        });
+    }
+
+    @GET
+    @Path("storageref/{ref}/warcheader")
+    @Produces(MediaType.TEXT_HTML)
+    public void getWarcHeaderForRef(@PathParam("ref") String storageRef,
+                                    @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.LOOKUP, "warcheader", () -> {
+            try {
+                PayloadCache.CachedRecord r = getHeaders(storageRef);
+                StringBuilder html = new StringBuilder(htmlHeader)
+                        .append("<h3>WARC headers for ")
+                        .append(storageRef.replaceAll("<", "&lt;"))
+                        .append("</h3><pre>");
+
+                html.append(new String(r.getWarcHeader(), StandardCharsets.UTF_8).replaceAll("<", "&lt;"));
+                html.append("</pre>");
+                return html.append(htmlFooter).toString();
+            } catch (Exception ex) {
+                LOG.error(ex.toString(), ex);
+                throw new WebApplicationException(ex, 404);
+            }
+        });
+    }
+
+    @GET
+    @Path("storageref/{ref}/httpheader")
+    @Produces(MediaType.TEXT_HTML)
+    public void getHttpHeaderForRef(@PathParam("ref") String storageRef,
+                                    @Suspended AsyncResponse response) {
+        requestExecutor.submit(response, RequestExecutor.Pool.LOOKUP, "httpheader", () -> {
+            try {
+                PayloadCache.CachedRecord r = getHeaders(storageRef);
+                StringBuilder html = new StringBuilder(htmlHeader)
+                        .append("<h3>HTTP headers for ")
+                        .append(storageRef.replaceAll("<", "&lt;"))
+                        .append("</h3><pre>");
+
+                html.append(new String(getHttpHeader(r)).replaceAll("<", "&lt;"));
+                html.append("</pre>");
+                return html.append(htmlFooter).toString();
+            } catch (Exception ex) {
+                LOG.error(ex.toString(), ex);
+                throw new WebApplicationException(ex, 404);
+            }
+        });
+    }
+
+    PayloadCache.CachedRecord getHeaders(String storageRef) {
+        StorageRef ref = StorageRef.parse(storageRef);
+        return getHeaders(ref.fileName, ref.offset);
+    }
+
+    /**
+     * Get the header blocks of the record at offset, from the cache if possible.
+     */
+    PayloadCache.CachedRecord getHeaders(String fileName, long offset) {
+        String key = PayloadCache.key(fileName, offset);
+        PayloadCache.CachedRecord cached = payloadCache.getHeaders(key);
+        if (cached != null) {
+            return cached;
+        }
+        try (WarcRecordContainer r = readRecord(fileName, offset)) {
+            HttpHeader httpHeader = r.warcRecord.getHttpHeader();
+            return payloadCache.putHeaders(key, r.warcRecord.header.headerBytes,
+                    httpHeader == null ? null : httpHeader.getHeader());
         }
     }
 
-    public Stream<WarcRecord> getRecords(String fileName) {
-        File warcFile = new File(warcDir, fileName);
-        try {
-            FileInputStream in = new FileInputStream(warcFile);
+    /**
+     * Read the WARC header block of a record without going through the payload cache.
+     */
+    private static byte[] readWarcHeader(WarcFileCache.Lease lease, long offset) throws IOException {
+        try (InputStream in = new BufferedInputStream(lease.openStream(offset))) {
             WarcReader warcReader = WarcReaderFactory.getReader(in);
-            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(warcReader.iterator(), 0), false)
-                    .onClose(() -> {
-                        warcReader.close();
-                        try {
-                            in.close();
-                        } catch (IOException ex) {
-                            throw new RuntimeException(ex);
-                        }
-                    });
-        } catch (Exception e) {
-            System.out.println("---------------");
-            e.printStackTrace();
+            WarcRecord record = warcReader == null ? null : warcReader.getNextRecord();
+            if (record == null) {
+                throw new IOException("No WARC record at offset " + offset + " in " + lease.getFile().getName());
+            }
+            return record.header.headerBytes;
         }
-        return null;
     }
 
-    public WarcRecordContainer getRecord(String storageRef) {
-        if (storageRef.startsWith("warcfile:")) {
-            String storageRefNoScheme = storageRef.substring(9);
-            if (!storageRefNoScheme.contains(":")) {
-                throw new WebApplicationException("Invalid storageref: " + storageRef, Status.BAD_REQUEST);
-            }
-            String fileName = storageRefNoScheme.substring(0, storageRefNoScheme.lastIndexOf(":"));
-            long offset = Long.parseLong(storageRefNoScheme.substring(storageRefNoScheme.lastIndexOf(":") + 1));
-            File warcFile = new File(warcDir, fileName);
+    private static byte[] getHttpHeader(PayloadCache.CachedRecord record) {
+        if (record.getHttpHeader() == null) {
+            throw new WebApplicationException("Record has no HTTP header", Status.NOT_FOUND);
+        }
+        return record.getHttpHeader();
+    }
+
+    /**
+     * Find a record in the stored index of a file.
+     * <p>
+     * Lookups never wait for a file to be indexed. If the record is not found, the index is brought up to date in
+     * the background, since the record might be in a part of the file which is not indexed yet.
+     */
+    WarcIndexEntry getIndexEntry(String fileName, String id) {
+        WarcIndexEntry entry = indexManager.getStoredIndex(fileName).get(id);
+        if (entry == null) {
             try {
-                FileInputStream in;
+                indexManager.resolveFile(fileName);
+            } catch (IOException ex) {
+                throw new WebApplicationException(ex, Status.NOT_FOUND);
+            }
+            indexManager.updateInBackground(fileName);
+            throw new WebApplicationException("Record not found: " + id, Status.NOT_FOUND);
+        }
+        return entry;
+    }
+
+    /**
+     * Create a streaming response for the payload of an indexed record.
+     * <p>
+     * Uncompressed payloads are transferred straight from the file channel. Compressed payloads are served from the
+     * payload cache if small enough, otherwise they are decompressed while writing. Single byte ranges are supported
+     * for all.
+     */
+    Response payloadResponse(String fileName, WarcIndexEntry entry, String type, String rangeHeader) {
+        final ByteRange range = ByteRange.parse(rangeHeader, entry.getPayloadLength());
+        final long start = range == null ? 0L : range.getStart();
+        final long length = range == null ? entry.getPayloadLength() : range.getLength();
+
+        StreamingOutput body;
+        if (entry.isPayloadDirectlyReadable()) {
+            body = output -> {
+                try (WarcFileCache.Lease lease = fileCache.acquire(fileName)) {
+                    transfer(lease, entry.getPayloadOffset() + start, length, output);
+                }
+            };
+        } else if (payloadCache.isCacheable(entry.getPayloadLength())) {
+            // Decoding is expensive, serve small payloads from the cache
+            body = output -> {
+                String key = PayloadCache.key(fileName, entry.getOffset());
+                PayloadCache.CachedRecord cached = payloadCache.getPayload(key, () -> loadPayload(fileName, entry));
+                write(cached.getPayload(start, length), output);
+            };
+        } else {
+            body = output -> {
+                try (WarcRecordContainer c = readRecord(fileName, entry.getOffset())) {
+                    InputStream payload = c.warcRecord.getPayloadContent();
+                    ByteStreams.skipFully(payload, start);
+                    ByteStreams.copy(ByteStreams.limit(payload, length), output);
+                }
+            };
+        }
+
+        return rangeResponse(body, type, range, length);
+    }
+
+    /**
+     * Create a response for a whole payload or a single range of it.
+     */
+    private static Response rangeResponse(StreamingOutput body, String type, ByteRange range, long length) {
+        Response.ResponseBuilder response;
+        if (range == null) {
+            response = Response.ok(body, type);
+        } else {
+            response = Response.status(Status.PARTIAL_CONTENT)
+                    .entity(body)
+                    .type(type)
+                    .header("Content-Range", range.toContentRange());
+        }
+        return response
+                .header(HttpHeaders.CONTENT_LENGTH, length)
+                .header("Accept-Ranges", "bytes")
+                .build();
+    }
+
+    /**
+     * Decode a whole payload into a direct buffer.
+     */
+    private PayloadCache.CachedRecord loadPayload(String fileName, WarcIndexEntry entry) throws IOException {
+        try (WarcRecordContainer c = readRecord(fileName, entry.getOffset())) {
+            ByteBuffer payload = ByteBuffer.allocateDirect((int) entry.getPayloadLength());
+            ReadableByteChannel in = Channels.newChannel(c.warcRecord.getPayloadContent());
+            while (payload.hasRemaining()) {
+                if (in.read(payload) < 0) {
+                    throw new EOFException("Unexpected end of payload for record at offset " + entry.getOffset()
+                            + " in " + fileName);
+                }
+            }
+            payload.flip();
+            HttpHeader httpHeader = c.warcRecord.getHttpHeader();
+            return PayloadCache.record(c.warcRecord.header.headerBytes,
+                    httpHeader == null ? null : httpHeader.getHeader(), payload);
+        }
+    }
+
+    private static void write(ByteBuffer buffer, OutputStream output) throws IOException {
+        WritableByteChannel target = Channels.newChannel(output);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private static void transfer(WarcFileCache.Lease lease, long position, long count, OutputStream output)
+            throws IOException {
+        FileChannel channel = lease.getChannel();
+        WritableByteChannel target = Channels.newChannel(output);
+        while (count > 0) {
+            long n = channel.transferTo(position, count, target);
+            if (n <= 0) {
+                throw new EOFException("Unexpected end of " + lease.getFile().getName() + " at offset " + position);
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Read the record starting at offset in a WARC file.
+     */
+    WarcRecordContainer readRecord(String fileName, long offset) {
+        WarcFileCache.Lease lease = null;
+        try {
+            lease = fileCache.acquire(fileName);
+            InputStream in = new BufferedInputStream(lease.openStream(offset));
+            WarcReader warcReader = WarcReaderFactory.getReader(in);
+            WarcRecord record = warcReader == null ? null : warcReader.getNextRecord();
+            if (record == null) {
+                throw new IOException("No WARC record at offset " + offset + " in " + fileName);
+            }
+            return new WarcRecordContainer(lease, in, warcReader, record);
+        } catch (IOException ex) {
+            if (lease != null) {
+                lease.close();
+            }
+            throw new WebApplicationException(ex, Status.NOT_FOUND);
+        }
+    }
+
+    private static class StorageRef {
+        private final String fileName;
+        private final long offset;
+
+        private StorageRef(String fileName, long offset) {
+            this.fileName = fileName;
+            this.offset = offset;
+        }
+
+        static StorageRef parse(String storageRef) {
+            if (storageRef.startsWith("warcfile:")) {
+                String storageRefNoScheme = storageRef.substring(9);
+                if (!storageRefNoScheme.contains(":")) {
+                    throw new WebApplicationException("Invalid storageref: " + storageRef, Status.BAD_REQUEST);
+                }
+                String fileName = storageRefNoScheme.substring(0, storageRefNoScheme.lastIndexOf(":"));
                 try {
-                    in = new FileInputStream(warcFile);
-                } catch (FileNotFoundException ex) {
-                    in = new FileInputStream(warcFile + ".open");
+                    long offset = Long.parseLong(storageRefNoScheme.substring(storageRefNoScheme.lastIndexOf(":") + 1));
+                    return new StorageRef(fileName, offset);
+                } catch (NumberFormatException ex) {
+                    throw new WebApplicationException("Invalid storageref: " + storageRef, Status.BAD_REQUEST);
                 }
-                in.skip(offset);
-                WarcReader warcReader = WarcReaderFactory.getReaderCompressed();
-                WarcRecord record = warcReader.getNextRecordFrom(in, offset);
-                return new WarcRecordContainer(in, warcReader, record);
-            } catch (Exception e) {
-                System.out.println("---------------");
-                e.printStackTrace();
+            } else {
+                throw new WebApplicationException("Unknown scheme: " + storageRef, Status.BAD_REQUEST);
             }
-            return null;
-        } else {
-            throw new WebApplicationException("Unknown scheme: " + storageRef, Status.BAD_REQUEST);
         }
     }
 
     private class WarcRecordContainer implements AutoCloseable {
+        private final WarcFileCache.Lease lease;
         private final InputStream in;
         private final WarcReader warcReader;
         private final WarcRecord warcRecord;
 
-        public WarcRecordContainer(InputStream in, WarcReader warcReader, WarcRecord warcRecord) {
+        public WarcRecordContainer(WarcFileCache.Lease lease, InputStream in, WarcReader warcReader, WarcRecord warcRecord) {
+            this.lease = lease;
             this.in = in;
             this.warcReader = warcReader;
             this.warcRecord = warcRecord;
@@ -399,6 +951,7 @@ public class ContentExplorerResource {
                 in.close();
             } catch (Exception ex) {
             }
+            lease.close();
         }
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Selects records by the metadata in the record index, so that records can be filtered without reading them.
+ * <p>
+ * All criteria are optional. A record must match every criterion which is set.
+ */
+public class ExportFilter implements Predicate<WarcIndexEntry> {
+
+    private final Set<String> types;
+
+    private final String uriPrefix;
+
+    private final Pattern uriPattern;
+
+    private final long from;
+
+    private final long to;
+
+    private final String contentType;
+
+    /**
+     * Create a filter.
+     *
+     * @param types       WARC-Types to include, empty for all
+     * @param uriPrefix   the WARC-Target-URI must start with this, or null
+     * @param uriRegex    the whole WARC-Target-URI must match this regular expression, or null
+     * @param from        include records with WARC-Date at or after this ISO-8601 instant or date, or null
+     * @param to          include records with WARC-Date before this ISO-8601 instant or date, or null
+     * @param contentType the content type must start with this, ignoring case. Parameters like charset are thereby
+     *                    matched if given. Null for all
+     * @throws WebApplicationException with status 400 if a regex or date is malformed
+     */
+    public ExportFilter(List<String> types, String uriPrefix, String uriRegex, String from, String to,
+                        String contentType) {
+        this.types = new HashSet<>(types);
+        this.uriPrefix = emptyToNull(uriPrefix);
+        try {
+            this.uriPattern = emptyToNull(uriRegex) == null ? null : Pattern.compile(uriRegex);
+        } catch (PatternSyntaxException ex) {
+            throw new WebApplicationException("Illegal uriRegex: " + ex.getDescription(), Status.BAD_REQUEST);
+        }
+        this.from = parseDate("from", from, Long.MIN_VALUE);
+        this.to = parseDate("to", to, Long.MAX_VALUE);
+        this.contentType = emptyToNull(contentType) == null ? null : contentType.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public boolean test(WarcIndexEntry e) {
+        if (!types.isEmpty() && !types.contains(e.getType())) {
+            return false;
+        }
+        if (uriPrefix != null && (e.getTargetUri() == null || !e.getTargetUri().startsWith(uriPrefix))) {
+            return false;
+        }
+        if (uriPattern != null && (e.getTargetUri() == null || !uriPattern.matcher(e.getTargetUri()).matches())) {
+            return false;
+        }
+        boolean dateFiltered = from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+        if (dateFiltered && (e.getDate() < 0 || e.getDate() < from || e.getDate() >= to)) {
+            return false;
+        }
+        if (contentType != null
+                && (e.getContentType() == null || !e.getContentType().toLowerCase(Locale.ROOT).startsWith(contentType))) {
+            return false;
+        }
+        return true;
+    }
+
+    private static long parseDate(String name, String value, long defaultValue) {
+        if (emptyToNull(value) == null) {
+            return defaultValue;
+        }
+        try {
+            return Instant.parse(value).toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            try {
+                return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            } catch (DateTimeParseException ex2) {
+                throw new WebApplicationException("Illegal " + name + " date: " + value, Status.BAD_REQUEST);
+            }
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Size bounded LRU cache of decoded records.
+ * <p>
+ * Entries are keyed by storage ref and hold the raw WARC header block, the HTTP header block and, for records small
+ * enough, the decoded payload. Payloads are kept in direct buffers outside the Java heap. The cache is bounded by the
+ * total size of the cached bytes.
+ */
+public class PayloadCache {
+
+    private static final String METRICS_NS = "veidemann";
+
+    private static final String METRICS_SUBSYSTEM = "contentexplorer";
+
+    private static final Counter requestsTotal = Counter.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("payload_cache_requests_total")
+            .help("Payload cache lookups")
+            .labelNames("kind", "result")
+            .register();
+
+    private static final Counter evictionsTotal = Counter.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("payload_cache_evictions_total")
+            .help("Records evicted from the payload cache")
+            .register();
+
+    private static final Gauge cachedBytes = Gauge.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("payload_cache_bytes")
+            .help("Bytes held by the payload cache")
+            .register();
+
+    /**
+     * Approximate per entry overhead in bytes, so that many small entries are also bounded.
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * The cache is split in this many segments, each bounded by its share of the maximum size.
+     */
+    private static final int CONCURRENCY_LEVEL = 4;
+
+    private final long maxEntrySize;
+
+    private final Cache<String, CachedRecord> cache;
+
+    /**
+     * Create a cache.
+     *
+     * @param maxSize      the maximum total size in bytes. Zero disables the cache
+     * @param maxEntrySize payloads larger than this are never cached
+     */
+    public PayloadCache(long maxSize, long maxEntrySize) {
+        // Payloads are held in a single buffer and an entry must fit in one segment of the cache
+        this.maxEntrySize = Math.min(Math.min(maxEntrySize, Integer.MAX_VALUE - ENTRY_OVERHEAD),
+                maxSize / CONCURRENCY_LEVEL - ENTRY_OVERHEAD);
+        this.cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(CONCURRENCY_LEVEL)
+                .maximumWeight(maxSize)
+                .weigher((String key, CachedRecord value) -> value.weight())
+                .removalListener(this::onRemoval)
+                .build();
+    }
+
+    static String key(String fileName, long offset) {
+        return "warcfile:" + WarcIndexManager.baseName(fileName) + ":" + offset;
+    }
+
+    /**
+     * Check if a payload is small enough to be cached.
+     *
+     * @param payloadLength the length of the payload
+     * @return true if the payload should be cached, false if the cache is disabled or the payload is too large
+     */
+    public boolean isCacheable(long payloadLength) {
+        return payloadLength <= maxEntrySize;
+    }
+
+    /**
+     * Get the header blocks of a record.
+     *
+     * @param key the storage ref of the record
+     * @return the cached record or null if not cached
+     */
+    public CachedRecord getHeaders(String key) {
+        CachedRecord record = cache.getIfPresent(key);
+        requestsTotal.labels("header", record == null ? "miss" : "hit").inc();
+        return record;
+    }
+
+    /**
+     * Get the payload of a record, loading it if not cached.
+     * <p>
+     * Concurrent requests for the same record wait for a single load instead of each decoding the payload.
+     *
+     * @param key    the storage ref of the record
+     * @param loader loads the record, see {@link #record(byte[], byte[], ByteBuffer)}
+     * @return the record with payload
+     * @throws IOException if the record could not be loaded
+     */
+    public CachedRecord getPayload(String key, Loader loader) throws IOException {
+        CachedRecord record = cache.getIfPresent(key);
+        if (record != null && record.payload != null) {
+            requestsTotal.labels("payload", "hit").inc();
+            return record;
+        }
+        requestsTotal.labels("payload", "miss").inc();
+        if (record != null) {
+            // Only the headers are cached, replace them with the whole record
+            cache.asMap().remove(key, record);
+        }
+        try {
+            record = cache.get(key, () -> {
+                CachedRecord loaded = loader.load();
+                cachedBytes.inc(loaded.weight());
+                return loaded;
+            });
+        } catch (ExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        } catch (UncheckedExecutionException | ExecutionError e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+        if (record.payload == null) {
+            // The headers were cached again while loading, load without caching
+            record = loader.load();
+        }
+        return record;
+    }
+
+    /**
+     * Cache the header blocks of a record.
+     * <p>
+     * An already cached payload for the record is kept.
+     *
+     * @return the cached record
+     */
+    public CachedRecord putHeaders(String key, byte[] warcHeader, byte[] httpHeader) {
+        CachedRecord old = cache.getIfPresent(key);
+        CachedRecord record = new CachedRecord(warcHeader, httpHeader, old == null ? null : old.payload);
+        cachedBytes.inc(record.weight());
+        cache.put(key, record);
+        return record;
+    }
+
+    /**
+     * Create a record for a loader passed to {@link #getPayload(String, Loader)}.
+     *
+     * @param payload the payload, positioned at zero with limit at the end of the payload
+     * @return the record
+     */
+    public static CachedRecord record(byte[] warcHeader, byte[] httpHeader, ByteBuffer payload) {
+        return new CachedRecord(warcHeader, httpHeader, payload);
+    }
+
+    private void onRemoval(RemovalNotification<String, CachedRecord> notification) {
+        cachedBytes.dec(notification.getValue().weight());
+        if (notification.wasEvicted()) {
+            evictionsTotal.inc();
+        }
+    }
+
+    /**
+     * Loads a record which is not cached.
+     */
+    public interface Loader {
+        CachedRecord load() throws IOException;
+    }
+
+    /**
+     * The cached parts of a record.
+     */
+    public static class CachedRecord {
+        private final byte[] warcHeader;
+
+        private final byte[] httpHeader;
+
+        private final ByteBuffer payload;
+
+        private CachedRecord(byte[] warcHeader, byte[] httpHeader, ByteBuffer payload) {
+            this.warcHeader = warcHeader;
+            this.httpHeader = httpHeader;
+            this.payload = payload;
+        }
+
+        private int weight() {
+            return ENTRY_OVERHEAD + warcHeader.length + (httpHeader == null ? 0 : httpHeader.length)
+                    + (payload == null ? 0 : payload.capacity());
+        }
+
+        public byte[] getWarcHeader() {
+            return warcHeader;
+        }
+
+        /**
+         * Get the HTTP header block.
+         *
+         * @return the header block or null if the record has no HTTP header
+         */
+        public byte[] getHttpHeader() {
+            return httpHeader;
+        }
+
+        /**
+         * Get a read only view of part of the payload.
+         *
+         * @param start  offset into the payload
+         * @param length number of bytes
+         * @return a buffer for reading the requested bytes
+         */
+        public ByteBuffer getPayload(long start, long length) {
+            ByteBuffer view = payload.asReadOnlyBuffer();
+            view.position((int) start).limit((int) (start + length));
+            return view;
+        }
+    }
+}
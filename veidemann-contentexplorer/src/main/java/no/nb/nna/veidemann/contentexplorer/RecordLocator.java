@@ -0,0 +1,349 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves WARC-Record-IDs to the file and offset of the record.
+ * <p>
+ * Only a sorted array of 64 bit hashes of the record ids is kept in memory for each file. A hit in the array is
+ * resolved to an offset by the file's index, which is loaded from its sidecar if it is not in memory.
+ * <p>
+ * All files are brought up to date by a background thread. A lookup which misses only brings up to date the files
+ * which have changed size or modification time since the last miss, so lookups never wait for a pass over the
+ * whole directory.
+ */
+public class RecordLocator implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecordLocator.class);
+
+    private static final long SYNC_INTERVAL_SECONDS = 10L;
+
+    private static final String UUID_PREFIX = "<urn:uuid:";
+
+    private static final long[] NO_HASHES = new long[0];
+
+    private final WarcDirectory warcDirectory;
+
+    private final WarcIndexManager indexManager;
+
+    /**
+     * Record id hashes for each file, keyed by the name of the file without '.open' suffix.
+     */
+    private final ConcurrentHashMap<String, FileIds> files = new ConcurrentHashMap<>();
+
+    /**
+     * Version of the listing last synced by the background thread. Only accessed by the background thread.
+     */
+    private String syncedVersion;
+
+    private final Object missLock = new Object();
+
+    /**
+     * The listing last compared against when a lookup missed. Guarded by missLock.
+     */
+    private WarcDirectory.Listing missListing;
+
+    private final ScheduledExecutorService syncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "record-locator-sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public RecordLocator(WarcDirectory warcDirectory, WarcIndexManager indexManager) {
+        this.warcDirectory = warcDirectory;
+        this.indexManager = indexManager;
+        // Files not yet synced by the background thread are not looked at when a lookup misses
+        this.missListing = warcDirectory.getListing();
+        syncExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (Exception e) {
+                LOG.warn("Could not update record locations: {}", e.toString(), e);
+            }
+        }, 0L, SYNC_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Find the location of a record.
+     *
+     * @param recordId the WARC-Record-ID, with or without angle brackets and 'urn:uuid:' prefix
+     * @return the location or null if the record is not found
+     */
+    public Location resolve(String recordId) {
+        Location location = lookup(recordId);
+        if (location == null && syncChanged()) {
+            location = lookup(recordId);
+        }
+        return location;
+    }
+
+    /**
+     * Find the locations of several records.
+     * <p>
+     * Changed files are brought up to date at most once per call.
+     *
+     * @param recordIds the WARC-Record-IDs, with or without angle brackets and 'urn:uuid:' prefix
+     * @return map from each requested id to its location. Ids which are not found are mapped to null
+     */
+    public Map<String, Location> resolve(List<String> recordIds) {
+        Map<String, Location> result = new LinkedHashMap<>();
+        boolean synced = false;
+        for (String id : recordIds) {
+            Location location = lookup(id);
+            if (location == null && !synced) {
+                synced = true;
+                if (syncChanged()) {
+                    location = lookup(id);
+                }
+            }
+            result.put(id, location);
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of known record ids.
+     *
+     * @return the number of record ids
+     */
+    public int size() {
+        int size = 0;
+        for (FileIds ids : files.values()) {
+            size += ids.hashes.length;
+        }
+        return size;
+    }
+
+    private Location lookup(String recordId) {
+        if (recordId.startsWith("<")) {
+            return lookupExact(recordId);
+        }
+        Location location = lookupExact(UUID_PREFIX + recordId + ">");
+        if (location == null) {
+            location = lookupExact("<" + recordId + ">");
+        }
+        return location;
+    }
+
+    private Location lookupExact(String recordId) {
+        long hash = hash(recordId);
+        for (Map.Entry<String, FileIds> e : files.entrySet()) {
+            if (e.getValue().mightContain(hash)) {
+                WarcIndex index = indexManager.getStoredIndex(e.getKey());
+                WarcIndexEntry entry = index.get(recordId);
+                if (entry != null) {
+                    return new Location(index.getFileName(), entry.getOffset());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Bring all files up to date.
+     * <p>
+     * Only called from the background thread. Does nothing if the WARC directory is unchanged since last time.
+     */
+    void sync() {
+        WarcDirectory.Listing listing = warcDirectory.getListing();
+        if (listing.getVersion().equals(syncedVersion)) {
+            return;
+        }
+
+        Set<String> present = new HashSet<>();
+        int added = 0;
+        for (WarcDirectory.WarcFileInfo file : listing.getFiles()) {
+            present.add(WarcIndexManager.baseName(file.getName()));
+            added += syncFile(file);
+        }
+        files.keySet().retainAll(present);
+
+        syncedVersion = listing.getVersion();
+        if (added > 0) {
+            LOG.debug("Added {} record ids, total {}", added, size());
+        }
+    }
+
+    /**
+     * Bring up to date the files which have changed since the last time a lookup missed.
+     *
+     * @return true if any file had changed
+     */
+    private boolean syncChanged() {
+        synchronized (missLock) {
+            WarcDirectory.Listing listing = warcDirectory.getListing();
+            if (listing.getVersion().equals(missListing.getVersion())) {
+                return false;
+            }
+            Set<WarcDirectory.WarcFileInfo> unchanged = new HashSet<>(missListing.getFiles());
+            for (WarcDirectory.WarcFileInfo file : listing.getFiles()) {
+                if (!unchanged.contains(file)) {
+                    syncFile(file);
+                }
+            }
+            missListing = listing;
+            return true;
+        }
+    }
+
+    /**
+     * Add hashes of new records in a file.
+     *
+     * @param file the file as listed in the WARC directory
+     * @return the number of added record ids
+     */
+    private int syncFile(WarcDirectory.WarcFileInfo file) {
+        String name = WarcIndexManager.baseName(file.getName());
+        FileIds old = files.get(name);
+        if (old != null && old.file.equals(file)) {
+            return 0;
+        }
+
+        FileIds updated;
+        int n = 0;
+        try {
+            WarcIndex index = indexManager.getIndex(name);
+            int size = index.size();
+            if (old == null || size < old.count) {
+                old = new FileIds(file, 0, NO_HASHES);
+            }
+            List<WarcIndexEntry> entries = index.getEntries(old.count, size - old.count);
+            long[] added = new long[entries.size()];
+            for (WarcIndexEntry entry : entries) {
+                if (entry.getRecordId() != null) {
+                    added[n++] = hash(entry.getRecordId());
+                }
+            }
+            updated = new FileIds(file, old.count + entries.size(), merge(old.hashes, added, n));
+        } catch (IOException e) {
+            // Not a WARC file or removed since listing. Not retried until the file changes.
+            LOG.debug("Skipping {}: {}", name, e.toString());
+            updated = new FileIds(file, old == null ? 0 : old.count, old == null ? NO_HASHES : old.hashes);
+        }
+
+        // The background thread and a lookup might update the same file concurrently, keep the most complete result
+        files.merge(name, updated, (current, u) -> u.count >= current.count ? u : current);
+        return n;
+    }
+
+    private static long[] merge(long[] sorted, long[] added, int addedCount) {
+        if (addedCount == 0) {
+            return sorted;
+        }
+        Arrays.sort(added, 0, addedCount);
+        long[] result = new long[sorted.length + addedCount];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < sorted.length && j < addedCount) {
+            result[k++] = sorted[i] <= added[j] ? sorted[i++] : added[j++];
+        }
+        while (i < sorted.length) {
+            result[k++] = sorted[i++];
+        }
+        while (j < addedCount) {
+            result[k++] = added[j++];
+        }
+        return result;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a record id.
+     */
+    static long hash(String recordId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < recordId.length(); i++) {
+            hash ^= recordId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @Override
+    public void close() {
+        syncExecutor.shutdownNow();
+    }
+
+    /**
+     * Hashes of the record ids in one file.
+     */
+    private static class FileIds {
+        private final WarcDirectory.WarcFileInfo file;
+
+        /**
+         * Number of index entries hashed.
+         */
+        private final int count;
+
+        private final long[] hashes;
+
+        private FileIds(WarcDirectory.WarcFileInfo file, int count, long[] hashes) {
+            this.file = file;
+            this.count = count;
+            this.hashes = hashes;
+        }
+
+        private boolean mightContain(long hash) {
+            return Arrays.binarySearch(hashes, hash) >= 0;
+        }
+    }
+
+    /**
+     * File name and offset of a record.
+     */
+    public static class Location {
+        private final String fileName;
+
+        private final long offset;
+
+        private Location(String fileName, long offset) {
+            this.fileName = fileName;
+            this.offset = offset;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get the location as a storage ref of the same form as the one used by the content writer.
+         *
+         * @return the storage ref
+         */
+        public String toStorageRef() {
+            return "warcfile:" + fileName + ":" + offset;
+        }
+    }
+}
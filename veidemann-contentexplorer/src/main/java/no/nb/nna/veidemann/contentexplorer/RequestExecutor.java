@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the WARC I/O of suspended requests on bounded thread pools.
+ * <p>
+ * Requests are divided in cheap lookups of single records and scans which might read whole files. Each kind has its
+ * own pool and queue, so a burst of scans can not delay lookups. When a queue is full the request is answered with
+ * 503 Service Unavailable instead of waiting.
+ */
+public class RequestExecutor implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestExecutor.class);
+
+    private static final String METRICS_NS = "veidemann";
+
+    private static final String METRICS_SUBSYSTEM = "contentexplorer";
+
+    private static final Histogram requestSeconds = Histogram.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("request_seconds")
+            .help("Time from a request is accepted until the response is written, in seconds")
+            .labelNames("endpoint")
+            .buckets(.001, .005, .01, .025, .05, .1, .25, .5, 1, 2.5, 5, 10, 30, 60, 120, 300)
+            .register();
+
+    private static final Gauge activeIo = Gauge.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("active_io")
+            .help("Requests currently doing WARC I/O")
+            .labelNames("pool")
+            .register();
+
+    private static final Gauge queuedRequests = Gauge.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("queued_requests")
+            .help("Requests waiting for a WARC I/O thread")
+            .labelNames("pool")
+            .register();
+
+    private static final Counter rejectedRequestsTotal = Counter.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("rejected_requests_total")
+            .help("Requests rejected because the WARC I/O queue was full")
+            .labelNames("pool")
+            .register();
+
+    public enum Pool {
+        /**
+         * Requests reading a single record or answered from memory.
+         */
+        LOOKUP,
+        /**
+         * Requests which might read a whole file.
+         */
+        SCAN
+    }
+
+    private final Map<Pool, ThreadPoolExecutor> executors = new EnumMap<>(Pool.class);
+
+    public RequestExecutor(int lookupThreads, int scanThreads, int maxQueuedRequests) {
+        executors.put(Pool.LOOKUP, createExecutor(Pool.LOOKUP, lookupThreads, maxQueuedRequests));
+        executors.put(Pool.SCAN, createExecutor(Pool.SCAN, scanThreads, maxQueuedRequests));
+    }
+
+    private static ThreadPoolExecutor createExecutor(Pool pool, int threads, int maxQueuedRequests) {
+        String prefix = "warc-io-" + pool.name().toLowerCase() + "-";
+        AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueuedRequests),
+                r -> {
+                    Thread t = new Thread(r, prefix + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Compute the response for a suspended request on one of the pools.
+     * <p>
+     * The response is resumed, and thereby written, on the pool thread. Streaming entities are therefore also read from
+     * the WARC file on that thread.
+     *
+     * @param response the suspended response
+     * @param pool     which pool to run on
+     * @param endpoint the name of the endpoint, used for metrics
+     * @param work     computes the response entity or throws an exception to be mapped to an error response
+     */
+    public void submit(AsyncResponse response, Pool pool, String endpoint, Callable<?> work) {
+        Histogram.Timer timer = requestSeconds.labels(endpoint).startTimer();
+        String poolName = pool.name().toLowerCase();
+        try {
+            queuedRequests.labels(poolName).inc();
+            executors.get(pool).execute(() -> {
+                queuedRequests.labels(poolName).dec();
+                activeIo.labels(poolName).inc();
+                try {
+                    response.resume(work.call());
+                } catch (Throwable t) {
+                    if (!(t instanceof WebApplicationException)) {
+                        LOG.error("Request to {} failed", endpoint, t);
+                    }
+                    response.resume(t);
+                } finally {
+                    activeIo.labels(poolName).dec();
+                    timer.observeDuration();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queuedRequests.labels(poolName).dec();
+            rejectedRequestsTotal.labels(poolName).inc();
+            timer.observeDuration();
+            response.resume(new WebApplicationException(Response.status(Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", 1)
+                    .build()));
+        }
+    }
+
+    @Override
+    public void close() {
+        executors.values().forEach(ThreadPoolExecutor::shutdownNow);
+    }
+}
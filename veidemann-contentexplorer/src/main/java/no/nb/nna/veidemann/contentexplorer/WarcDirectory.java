@@ -0,0 +1,307 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * In memory model of the files in the WARC directory.
+ * <p>
+ * The model is kept current by watching the directory, so listing the files does not touch the file system. Since
+ * watching is unreliable on some network file systems, the whole directory is also rescanned periodically.
+ */
+public class WarcDirectory implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarcDirectory.class);
+
+    private static final long RESCAN_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final File warcDir;
+
+    private final Map<String, WarcFileInfo> files = new HashMap<>();
+
+    /**
+     * Distinguishes versions from different runs of the service.
+     */
+    private final String instanceId = Long.toString(System.currentTimeMillis(), 36);
+
+    private long version = 0L;
+
+    private volatile Listing listing;
+
+    private final Thread watcher;
+
+    private volatile boolean closed = false;
+
+    public WarcDirectory(File warcDir) {
+        this.warcDir = warcDir;
+        rescan();
+        watcher = new Thread(this::watch, "warc-dir-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Get the current listing.
+     *
+     * @return an immutable snapshot of the directory
+     */
+    public Listing getListing() {
+        return listing;
+    }
+
+    private void watch() {
+        WatchService watchService = null;
+        try {
+            watchService = warcDir.toPath().getFileSystem().newWatchService();
+            warcDir.toPath().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warn("Could not watch {}, relying on periodic rescan: {}", warcDir, e.toString());
+            closeQuietly(watchService);
+            watchService = null;
+        }
+
+        try {
+            long nextRescan = System.currentTimeMillis() + RESCAN_INTERVAL_MS;
+            while (!closed) {
+                long wait = Math.max(0L, nextRescan - System.currentTimeMillis());
+                WatchKey key;
+                if (watchService == null) {
+                    Thread.sleep(wait);
+                    key = null;
+                } else {
+                    key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+                }
+
+                boolean rescan = false;
+                if (key != null) {
+                    Set<String> changed = new HashSet<>();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            rescan = true;
+                        } else {
+                            changed.add(event.context().toString());
+                        }
+                    }
+                    if (!key.reset()) {
+                        LOG.warn("{} is no longer watched, relying on periodic rescan", warcDir);
+                        closeQuietly(watchService);
+                        watchService = null;
+                        rescan = true;
+                    }
+                    if (!rescan) {
+                        update(changed);
+                    }
+                }
+
+                // A steady stream of events, e.g. from a file being written, must not postpone the periodic rescan
+                if (rescan || System.currentTimeMillis() >= nextRescan) {
+                    rescan();
+                    nextRescan = System.currentTimeMillis() + RESCAN_INTERVAL_MS;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        } catch (Exception e) {
+            LOG.error("Watching {} failed", warcDir, e);
+        } finally {
+            closeQuietly(watchService);
+        }
+    }
+
+    /**
+     * Read the whole directory.
+     */
+    private synchronized void rescan() {
+        File[] current = warcDir.listFiles(File::isFile);
+        if (current == null) {
+            LOG.warn("Could not list {}", warcDir);
+            return;
+        }
+        Map<String, WarcFileInfo> scanned = new HashMap<>();
+        for (File f : current) {
+            scanned.put(f.getName(), new WarcFileInfo(f));
+        }
+        if (listing == null || !scanned.equals(files)) {
+            files.clear();
+            files.putAll(scanned);
+            publish();
+        }
+    }
+
+    /**
+     * Refresh only the files reported as changed by the watcher.
+     */
+    private synchronized void update(Collection<String> names) {
+        boolean modified = false;
+        for (String name : names) {
+            File f = new File(warcDir, name);
+            WarcFileInfo old;
+            if (f.isFile()) {
+                WarcFileInfo info = new WarcFileInfo(f);
+                old = files.put(name, info);
+                modified |= !info.equals(old);
+            } else {
+                old = files.remove(name);
+                modified |= old != null;
+            }
+        }
+        if (modified) {
+            publish();
+        }
+    }
+
+    private void publish() {
+        List<WarcFileInfo> sorted = new ArrayList<>(files.values());
+        sorted.sort(Comparator.comparing(WarcFileInfo::getName));
+        listing = new Listing(instanceId + "-" + (++version), Collections.unmodifiableList(sorted));
+    }
+
+    private static void closeQuietly(WatchService watchService) {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        watcher.interrupt();
+    }
+
+    /**
+     * An immutable snapshot of the directory.
+     */
+    public static class Listing {
+        private final String version;
+
+        private final List<WarcFileInfo> files;
+
+        private Listing(String version, List<WarcFileInfo> files) {
+            this.version = version;
+            this.files = files;
+        }
+
+        /**
+         * Get a value which changes every time the directory changes.
+         *
+         * @return the version
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Get all files ordered by name.
+         *
+         * @return the files
+         */
+        public List<WarcFileInfo> getFiles() {
+            return files;
+        }
+
+        /**
+         * Get the files with a name matching a pattern, ordered by name.
+         *
+         * @param namePattern pattern which must match the whole file name, or null to get all files
+         * @return the files
+         */
+        public List<WarcFileInfo> getFiles(Pattern namePattern) {
+            if (namePattern == null) {
+                return files;
+            }
+            return files.stream()
+                    .filter(f -> namePattern.matcher(f.getName()).matches())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Name and size of a file in the WARC directory.
+     */
+    public static class WarcFileInfo {
+        private final String name;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private WarcFileInfo(File file) {
+            this.name = file.getName();
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            WarcFileInfo that = (WarcFileInfo) o;
+            return size == that.size && lastModified == that.lastModified && name.equals(that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, size, lastModified);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of open WARC files.
+ * <p>
+ * Files are kept open in a LRU cache and shared between requests. All reads use positional reads on the shared
+ * channel, so concurrent readers of the same file never contend on a file position. A channel which is evicted while
+ * in use is closed when the last lease is released.
+ */
+public class WarcFileCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarcFileCache.class);
+
+    private final WarcIndexManager indexManager;
+
+    private final int maxOpenFiles;
+
+    private final LinkedHashMap<String, CachedChannel> channels = new LinkedHashMap<>(16, 0.75f, true);
+
+    public WarcFileCache(WarcIndexManager indexManager, int maxOpenFiles) {
+        this.indexManager = indexManager;
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Get a lease on an open channel for a WARC file.
+     * <p>
+     * The lease must be closed when done.
+     *
+     * @param fileName the name of the WARC file, with or without the '.open' suffix
+     * @return the lease
+     * @throws IOException if the file could not be opened
+     */
+    public Lease acquire(String fileName) throws IOException {
+        String name = WarcIndexManager.baseName(fileName);
+        File file = indexManager.resolveFile(name);
+
+        synchronized (channels) {
+            CachedChannel cached = lookup(name, file);
+            if (cached != null) {
+                return lease(cached);
+            }
+        }
+
+        // Open outside the lock so a slow open does not block requests for other files
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        synchronized (channels) {
+            CachedChannel cached = lookup(name, file);
+            if (cached != null) {
+                // Another request opened the file while we did
+                closeQuietly(file, channel);
+                return lease(cached);
+            }
+            cached = new CachedChannel(file, channel);
+            channels.put(name, cached);
+            evictOverflow();
+            return lease(cached);
+        }
+    }
+
+    /**
+     * Get a usable cached channel, evicting it if it is stale.
+     * <p>
+     * A cached channel is stale if the file is renamed from '.open' since it was opened, or if the channel is closed,
+     * e.g. because a reading thread was interrupted.
+     * Must be called while holding the lock on {@link #channels}.
+     */
+    private CachedChannel lookup(String name, File file) {
+        CachedChannel cached = channels.get(name);
+        if (cached != null && (!cached.file.equals(file) || !cached.channel.isOpen())) {
+            channels.remove(name);
+            cached.evict();
+            cached = null;
+        }
+        return cached;
+    }
+
+    private Lease lease(CachedChannel cached) {
+        cached.refCount++;
+        return new Lease(cached);
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, CachedChannel>> it = channels.entrySet().iterator();
+        while (channels.size() > maxOpenFiles && it.hasNext()) {
+            CachedChannel eldest = it.next().getValue();
+            it.remove();
+            eldest.evict();
+        }
+    }
+
+    private void release(CachedChannel cached) {
+        synchronized (channels) {
+            cached.refCount--;
+            if (cached.evicted && cached.refCount == 0) {
+                cached.close();
+            }
+        }
+    }
+
+    private static class CachedChannel {
+        private final File file;
+        private final FileChannel channel;
+        private int refCount = 0;
+        private boolean evicted = false;
+
+        private CachedChannel(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        private void evict() {
+            evicted = true;
+            if (refCount == 0) {
+                close();
+            }
+        }
+
+        private void close() {
+            closeQuietly(file, channel);
+        }
+    }
+
+    private static void closeQuietly(File file, FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close {}: {}", file, e.toString());
+        }
+    }
+
+    /**
+     * A reference to an open WARC file.
+     */
+    public class Lease implements AutoCloseable {
+        private final CachedChannel cached;
+        private boolean released = false;
+
+        private Lease(CachedChannel cached) {
+            this.cached = cached;
+        }
+
+        public FileChannel getChannel() {
+            return cached.channel;
+        }
+
+        public File getFile() {
+            return cached.file;
+        }
+
+        /**
+         * Get a stream reading the file from an offset.
+         * <p>
+         * The stream does not change the position of the shared channel and closing it does not close the channel.
+         *
+         * @param offset where to start reading
+         * @return the stream
+         */
+        public InputStream openStream(long offset) {
+            return new PositionalInputStream(cached.channel, offset);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                release(cached);
+            }
+        }
+    }
+
+    private static class PositionalInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        private PositionalInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0L, Math.min(n, channel.size() - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0L, channel.size() - position));
+        }
+    }
+}
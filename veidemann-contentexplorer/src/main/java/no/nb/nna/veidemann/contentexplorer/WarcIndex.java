@@ -0,0 +1,443 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Index of the records in one WARC file.
+ * <p>
+ * The index is kept in memory and persisted to a sidecar file. When the WARC file grows, only the new records are
+ * read and appended to the sidecar.
+ */
+public class WarcIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarcIndex.class);
+
+    private static final String SIDECAR_HEADER = "#veidemann-warc-index 2";
+
+    /**
+     * Files smaller than this are always indexed sequentially.
+     */
+    private static final long PARALLEL_THRESHOLD = 64L * 1024 * 1024;
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static final byte[] GZIP_MAGIC = {(byte) 0x1f, (byte) 0x8b, (byte) 0x08};
+
+    private final String fileName;
+
+    private final File sidecar;
+
+    private final List<WarcIndexEntry> entries = new ArrayList<>();
+
+    private final Map<String, WarcIndexEntry> entriesById = new HashMap<>();
+
+    /**
+     * Only written by the thread updating the index.
+     */
+    private volatile Boolean compressed;
+
+    private long indexedLength = 0L;
+
+    /**
+     * Length of the sidecar when it was last read or written by this instance.
+     */
+    private long sidecarLength = 0L;
+
+    WarcIndex(String fileName, File sidecar) {
+        this.fileName = fileName;
+        this.sidecar = sidecar;
+        load();
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Find a record by its WARC-Record-ID.
+     *
+     * @param recordId the record id including angle brackets
+     * @return the entry or null if not found
+     */
+    public synchronized WarcIndexEntry get(String recordId) {
+        return entriesById.get(recordId);
+    }
+
+    /**
+     * Find a record by its offset in the file.
+     *
+     * @param offset the offset where the record starts
+     * @return the entry or null if no record starts at offset
+     */
+    public synchronized WarcIndexEntry getByOffset(long offset) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midOffset = entries.get(mid).getOffset();
+            if (midOffset < offset) {
+                low = mid + 1;
+            } else if (midOffset > offset) {
+                high = mid - 1;
+            } else {
+                return entries.get(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get a snapshot of all entries in file order.
+     *
+     * @return the entries
+     */
+    public synchronized List<WarcIndexEntry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /**
+     * Get a page of entries in file order.
+     *
+     * @param from  index of the first entry
+     * @param count maximum number of entries
+     * @return the entries
+     */
+    public synchronized List<WarcIndexEntry> getEntries(int from, int count) {
+        int start = Math.max(0, Math.min(from, entries.size()));
+        int end = (int) Math.min((long) start + Math.max(0, count), entries.size());
+        return Collections.unmodifiableList(new ArrayList<>(entries.subList(start, end)));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getIndexedLength() {
+        return indexedLength;
+    }
+
+    public synchronized boolean isCompressed() {
+        return compressed != null && compressed;
+    }
+
+    /**
+     * Index records added to the WARC file since last update.
+     * <p>
+     * The WARC file is read without holding the lock on the index, so lookups in the index are not blocked while
+     * indexing. Updates of one file must not run concurrently, which is ensured by {@link WarcIndexManager}.
+     *
+     * @param warcFile the current location of the WARC file
+     * @param open     true if the file is still being written
+     */
+    void update(File warcFile, boolean open) throws IOException {
+        long from;
+        synchronized (this) {
+            if (sidecar.length() != sidecarLength) {
+                // Another instance for the same file has written to the sidecar since it was read by this instance
+                reload();
+            }
+            from = indexedLength;
+        }
+
+        long fileLength = warcFile.length();
+        if (fileLength <= from) {
+            return;
+        }
+
+        if (compressed == null) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(warcFile))) {
+                WarcReader probe = WarcReaderFactory.getReader(in);
+                if (probe == null) {
+                    throw new IOException("Not a WARC file: " + fileName);
+                }
+                compressed = probe.isCompressed();
+            }
+        }
+
+        List<WarcIndexEntry> added = null;
+        if (compressed && from == 0L && !open && fileLength >= PARALLEL_THRESHOLD && PARALLELISM > 1) {
+            added = scanParallel(warcFile, fileLength);
+        }
+        if (added == null) {
+            added = scan(warcFile, from, Long.MAX_VALUE, open, fileLength);
+        }
+
+        if (added.isEmpty()) {
+            return;
+        }
+
+        append(added);
+        synchronized (this) {
+            for (WarcIndexEntry e : added) {
+                addEntry(e);
+            }
+            sidecarLength = sidecar.length();
+            LOG.debug("Indexed {} new records in {}, total {}", added.size(), fileName, entries.size());
+        }
+    }
+
+    /**
+     * Read records starting at or after {@code from} and before {@code to}.
+     */
+    private List<WarcIndexEntry> scan(File warcFile, long from, long to, boolean open, long fileLength)
+            throws IOException {
+        List<WarcIndexEntry> result = new ArrayList<>();
+        try (FileInputStream fin = new FileInputStream(warcFile)) {
+            fin.getChannel().position(from);
+            InputStream in = new BufferedInputStream(fin);
+            // Offsets reported by the reader are relative to where reading started
+            WarcReader reader = compressed ? WarcReaderFactory.getReaderCompressed(in)
+                    : WarcReaderFactory.getReaderUncompressed(in);
+            try {
+                WarcRecord record;
+                while ((record = reader.getNextRecord()) != null) {
+                    if (from + record.getStartOffset() >= to) {
+                        break;
+                    }
+                    // Consume the record to find where it ends
+                    record.close();
+                    long endOffset = from + reader.getOffset();
+                    if (open && !isComplete(record, fin.getChannel(), endOffset, fileLength)) {
+                        // Last record of a file which is still written to might be incomplete.
+                        // Leave it for the next update.
+                        break;
+                    }
+                    result.add(WarcIndexEntry.fromRecord(record, from, endOffset, compressed));
+                }
+            } catch (Exception e) {
+                LOG.warn("Stopped indexing {} at offset {}: {}", fileName, from + reader.getOffset(), e.toString());
+            } finally {
+                reader.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check that a record is completely written.
+     * <p>
+     * The content must be read to the declared Content-Length and be followed by the trailing newlines. For
+     * uncompressed files the record must end with CRLFCRLF (or LFLF), since a lone CR at the end of the file is also
+     * accepted as a newline by the reader. For compressed files the gzip trailer must be present. This is checked by
+     * comparing the uncompressed size stored in the trailer with the length of the record.
+     */
+    private boolean isComplete(WarcRecord record, FileChannel channel, long endOffset, long fileLength)
+            throws IOException {
+        if (endOffset > fileLength || record.trailingNewlines < 2) {
+            return false;
+        }
+        long contentLength = record.header.contentLength == null ? 0L : record.header.contentLength;
+        if (record.getConsumed() < record.header.headerBytes.length + contentLength) {
+            return false;
+        }
+        ByteBuffer tail = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, endOffset - 4 + tail.position()) < 0) {
+                return false;
+            }
+        }
+        if (compressed) {
+            return (tail.getInt(0) & 0xffffffffL) == (record.getConsumed() & 0xffffffffL);
+        }
+        return (tail.get(0) == '\r' && tail.get(1) == '\n' && tail.get(2) == '\r' && tail.get(3) == '\n')
+                || (tail.get(2) == '\n' && tail.get(3) == '\n');
+    }
+
+    /**
+     * Index a complete gzip compressed file by splitting it in segments at gzip member boundaries and reading the
+     * segments in parallel.
+     *
+     * @return the entries or null if the file could not be split
+     */
+    private List<WarcIndexEntry> scanParallel(File warcFile, long fileLength) {
+        try {
+            long segmentSize = fileLength / PARALLELISM;
+            List<Long> boundaries = new ArrayList<>();
+            boundaries.add(0L);
+            for (int i = 1; i < PARALLELISM; i++) {
+                long boundary = findRecordStart(warcFile, Math.max(i * segmentSize, boundaries.get(i - 1) + 1));
+                if (boundary < 0) {
+                    break;
+                }
+                boundaries.add(boundary);
+            }
+            boundaries.add(fileLength);
+
+            List<List<WarcIndexEntry>> segments = IntStream.range(0, boundaries.size() - 1).parallel()
+                    .mapToObj(i -> {
+                        try {
+                            return scan(warcFile, boundaries.get(i), boundaries.get(i + 1), false, fileLength);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .collect(Collectors.toList());
+
+            List<WarcIndexEntry> result = new ArrayList<>();
+            long expectedOffset = 0L;
+            for (List<WarcIndexEntry> segment : segments) {
+                for (WarcIndexEntry e : segment) {
+                    if (e.getOffset() != expectedOffset) {
+                        LOG.warn("Gap in parallel index of {} at offset {}, falling back to sequential indexing",
+                                fileName, expectedOffset);
+                        return null;
+                    }
+                    result.add(e);
+                    expectedOffset = e.getEndOffset();
+                }
+            }
+            LOG.debug("Indexed {} in {} parallel segments", fileName, segments.size());
+            return result;
+        } catch (Exception e) {
+            LOG.warn("Parallel indexing of {} failed, falling back to sequential indexing: {}", fileName, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Find the first gzip member at or after position which contains a WARC record.
+     *
+     * @return the offset of the member or -1 if none was found
+     */
+    private long findRecordStart(File warcFile, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(warcFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            long bufStart = position;
+            while (bufStart < channel.size()) {
+                buf.clear();
+                int n = channel.read(buf, bufStart);
+                if (n < GZIP_MAGIC.length) {
+                    return -1L;
+                }
+                for (int i = 0; i <= n - GZIP_MAGIC.length; i++) {
+                    if (buf.get(i) == GZIP_MAGIC[0] && buf.get(i + 1) == GZIP_MAGIC[1] && buf.get(i + 2) == GZIP_MAGIC[2]
+                            && isRecordStart(warcFile, bufStart + i)) {
+                        return bufStart + i;
+                    }
+                }
+                bufStart += n - GZIP_MAGIC.length + 1;
+            }
+        }
+        return -1L;
+    }
+
+    private boolean isRecordStart(File warcFile, long position) {
+        try (FileInputStream fin = new FileInputStream(warcFile)) {
+            fin.getChannel().position(position);
+            WarcReader reader = WarcReaderFactory.getReaderCompressed(new BufferedInputStream(fin));
+            try {
+                WarcRecord record = reader.getNextRecord();
+                return record != null && record.getStartOffset() == 0L && record.header.warcRecordIdStr != null;
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void addEntry(WarcIndexEntry entry) {
+        entries.add(entry);
+        if (entry.getRecordId() != null) {
+            entriesById.put(entry.getRecordId(), entry);
+        }
+        indexedLength = entry.getEndOffset();
+    }
+
+    private void reload() {
+        entries.clear();
+        entriesById.clear();
+        indexedLength = 0L;
+        compressed = null;
+        sidecarLength = 0L;
+        load();
+    }
+
+    private void load() {
+        if (!sidecar.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(sidecar.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(SIDECAR_HEADER + " ")) {
+                throw new IOException("Unknown format");
+            }
+            compressed = line.endsWith("compressed=true");
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    addEntry(WarcIndexEntry.parse(line));
+                }
+            }
+            sidecarLength = sidecar.length();
+        } catch (Exception e) {
+            LOG.warn("Could not read index {}, rebuilding: {}", sidecar, e.toString());
+            entries.clear();
+            entriesById.clear();
+            indexedLength = 0L;
+            compressed = null;
+            sidecarLength = 0L;
+            sidecar.delete();
+        }
+    }
+
+    private void append(List<WarcIndexEntry> added) {
+        try {
+            boolean newFile = !sidecar.isFile();
+            try (BufferedWriter out = Files.newBufferedWriter(sidecar.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                if (newFile) {
+                    out.write(SIDECAR_HEADER + " compressed=" + compressed);
+                    out.newLine();
+                }
+                for (WarcIndexEntry e : added) {
+                    out.write(e.format());
+                    out.newLine();
+                }
+            }
+        } catch (IOException e) {
+            // The in memory index is still usable, the file will be reindexed on next startup
+            LOG.warn("Could not write index {}: {}", sidecar, e.toString());
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import org.jwat.common.HeaderLine;
+import org.jwat.common.HttpHeader;
+import org.jwat.warc.WarcRecord;
+
+/**
+ * Location and key metadata for one record in a WARC file.
+ * <p>
+ * Entries are stored one per line in the index sidecar as tab separated fields, much like a CDX file.
+ */
+public class WarcIndexEntry {
+
+    private static final String NULL_FIELD = "-";
+
+    private final String recordId;
+
+    private final long offset;
+
+    private final long length;
+
+    private final String type;
+
+    private final String targetUri;
+
+    private final String contentType;
+
+    private final boolean httpHeader;
+
+    /**
+     * Offset of the payload in the file, or -1 if the file is compressed.
+     */
+    private final long payloadOffset;
+
+    private final long payloadLength;
+
+    /**
+     * WARC-Date in milliseconds since the epoch, or -1 if missing.
+     */
+    private final long date;
+
+    public WarcIndexEntry(String recordId, long offset, long length, String type, String targetUri,
+                          String contentType, boolean httpHeader, long payloadOffset, long payloadLength, long date) {
+        this.recordId = recordId;
+        this.offset = offset;
+        this.length = length;
+        this.type = type;
+        this.targetUri = targetUri;
+        this.contentType = contentType;
+        this.httpHeader = httpHeader;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+        this.date = date;
+    }
+
+    /**
+     * Create an entry for a record which has been read to the end.
+     *
+     * @param record     the record
+     * @param base       the offset in the file where the reader started
+     * @param endOffset  the offset in the file where the record ends
+     * @param compressed true if the file is gzip compressed
+     * @return the index entry
+     */
+    static WarcIndexEntry fromRecord(WarcRecord record, long base, long endOffset, boolean compressed) {
+        long offset = base + record.getStartOffset();
+        HttpHeader http = record.getHttpHeader();
+
+        String contentType = null;
+        long payloadOffset;
+        if (http != null) {
+            HeaderLine ct = http.getHeader("content-type");
+            if (ct != null) {
+                contentType = ct.value;
+            }
+            payloadOffset = offset + record.header.headerBytes.length + http.getHeader().length;
+        } else {
+            contentType = record.header.contentTypeStr;
+            payloadOffset = offset + record.header.headerBytes.length;
+        }
+        long payloadLength = payloadLength(record);
+
+        return new WarcIndexEntry(record.header.warcRecordIdStr, offset, endOffset - offset,
+                record.header.warcTypeStr, record.header.warcTargetUriStr, contentType, http != null,
+                compressed ? -1L : payloadOffset, payloadLength,
+                record.header.warcDate == null ? -1L : record.header.warcDate.getTime());
+    }
+
+    /**
+     * Get the length of the payload of a record, excluding any HTTP header.
+     *
+     * @param record a record with its headers read
+     * @return the payload length
+     */
+    static long payloadLength(WarcRecord record) {
+        HttpHeader http = record.getHttpHeader();
+        if (http != null) {
+            return http.payloadLength;
+        }
+        return record.header.contentLength == null ? 0L : record.header.contentLength;
+    }
+
+    static WarcIndexEntry parse(String line) {
+        String[] f = line.split("\t", -1);
+        if (f.length != 10) {
+            throw new IllegalArgumentException("Malformed index line: " + line);
+        }
+        return new WarcIndexEntry(decode(f[3]), Long.parseLong(f[0]), Long.parseLong(f[1]), decode(f[2]),
+                decode(f[4]), decode(f[5]), "1".equals(f[6]), Long.parseLong(f[7]), Long.parseLong(f[8]),
+                Long.parseLong(f[9]));
+    }
+
+    String format() {
+        return new StringBuilder()
+                .append(offset).append('\t')
+                .append(length).append('\t')
+                .append(encode(type)).append('\t')
+                .append(encode(recordId)).append('\t')
+                .append(encode(targetUri)).append('\t')
+                .append(encode(contentType)).append('\t')
+                .append(httpHeader ? '1' : '0').append('\t')
+                .append(payloadOffset).append('\t')
+                .append(payloadLength).append('\t')
+                .append(date)
+                .toString();
+    }
+
+    private static String encode(String value) {
+        if (value == null || value.isEmpty()) {
+            return NULL_FIELD;
+        }
+        // Fields are tab separated and entries are newline separated
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String decode(String field) {
+        return NULL_FIELD.equals(field) ? null : field;
+    }
+
+    public String getRecordId() {
+        return recordId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getEndOffset() {
+        return offset + length;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getTargetUri() {
+        return targetUri;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public boolean hasHttpHeader() {
+        return httpHeader;
+    }
+
+    public long getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public long getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Get the WARC-Date of the record.
+     *
+     * @return milliseconds since the epoch, or -1 if the record has no valid date
+     */
+    public long getDate() {
+        return date;
+    }
+
+    /**
+     * Can the payload be read directly from the file.
+     *
+     * @return true if the payload is stored uncompressed at {@link #getPayloadOffset()}
+     */
+    public boolean isPayloadDirectlyReadable() {
+        return payloadOffset >= 0;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps record indexes for the WARC files in the WARC directory.
+ * <p>
+ * An index is loaded from its sidecar, or built, the first time a file is requested. It is brought up to date each
+ * time it is requested if the file has grown since. Lookups use the index as stored instead, so they never wait for a
+ * WARC file to be read. Only the most recently used indexes are kept in memory, the others are loaded from their
+ * sidecars again when needed.
+ */
+public class WarcIndexManager implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarcIndexManager.class);
+
+    static final String OPEN_SUFFIX = ".open";
+
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File warcDir;
+
+    private final File indexDir;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final int maxCachedIndexes;
+
+    private final LinkedHashMap<String, WarcIndex> indexes = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Updates of an index are done while holding the lock for its file, so one file is never indexed by two threads.
+     * Lookups do not take the lock. An instance loaded by a lookup while the file is updated might miss the newest
+     * entries, it reloads its sidecar before it is updated itself.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final Set<String> pendingUpdates = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService backgroundIndexer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "warc-indexer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public WarcIndexManager(File warcDir, File indexDir, int maxCachedIndexes) {
+        this.warcDir = warcDir;
+        this.indexDir = indexDir;
+        this.maxCachedIndexes = Math.max(1, maxCachedIndexes);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        if (!indexDir.isDirectory() && !indexDir.mkdirs()) {
+            LOG.warn("Could not create index directory {}", indexDir);
+        }
+    }
+
+    /**
+     * Get an up to date index for a WARC file.
+     *
+     * @param fileName the name of the WARC file, with or without the '.open' suffix
+     * @return the index
+     * @throws FileNotFoundException if the WARC file does not exist
+     * @throws IOException           if the WARC file could not be read
+     */
+    public WarcIndex getIndex(String fileName) throws IOException {
+        String name = baseName(fileName);
+        File warcFile = resolveFile(name);
+        synchronized (lockFor(name)) {
+            WarcIndex index = cachedIndex(name);
+            index.update(warcFile, warcFile.getName().endsWith(OPEN_SUFFIX));
+            return index;
+        }
+    }
+
+    /**
+     * Get the index for a WARC file as it is, without reading records added to the file since it was last updated.
+     * <p>
+     * The index is loaded from its sidecar if it is not in memory.
+     *
+     * @param fileName the name of the WARC file, with or without the '.open' suffix
+     * @return the index, which is empty if the file is not indexed
+     */
+    public WarcIndex getStoredIndex(String fileName) {
+        return cachedIndex(baseName(fileName));
+    }
+
+    /**
+     * Bring the index for a WARC file up to date in the background.
+     * <p>
+     * Used by lookups, which must never wait for a file to be indexed. Does nothing if an update of the file is
+     * already pending.
+     *
+     * @param fileName the name of the WARC file, with or without the '.open' suffix
+     */
+    public void updateInBackground(String fileName) {
+        String name = baseName(fileName);
+        if (!pendingUpdates.add(name)) {
+            return;
+        }
+        try {
+            backgroundIndexer.execute(() -> {
+                pendingUpdates.remove(name);
+                try {
+                    getIndex(name);
+                } catch (IOException e) {
+                    LOG.debug("Could not index {}: {}", name, e.toString());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingUpdates.remove(name);
+        }
+    }
+
+    /**
+     * Get an index from memory or load it from its sidecar.
+     */
+    private WarcIndex cachedIndex(String name) {
+        WarcIndex index;
+        synchronized (indexes) {
+            index = indexes.get(name);
+        }
+        if (index == null) {
+            // Read the sidecar without holding the lock on the cache
+            WarcIndex loaded = new WarcIndex(name, new File(indexDir, name + INDEX_SUFFIX));
+            synchronized (indexes) {
+                index = indexes.get(name);
+                if (index != null) {
+                    // Loaded by another thread meanwhile
+                    return index;
+                }
+                index = loaded;
+                indexes.put(name, index);
+                Iterator<WarcIndex> it = indexes.values().iterator();
+                while (indexes.size() > maxCachedIndexes && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+        return index;
+    }
+
+    private Object lockFor(String name) {
+        return locks[(name.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    /**
+     * Find the file for a WARC, taking into account that it might still be open for writing.
+     *
+     * @param fileName the name of the WARC file, with or without the '.open' suffix
+     * @return the file
+     * @throws FileNotFoundException if neither the closed or the open file exists
+     */
+    public File resolveFile(String fileName) throws FileNotFoundException {
+        String name = baseName(fileName);
+        File warcFile = new File(warcDir, name);
+        if (warcFile.isFile()) {
+            return warcFile;
+        }
+        warcFile = new File(warcDir, name + OPEN_SUFFIX);
+        if (warcFile.isFile()) {
+            return warcFile;
+        }
+        throw new FileNotFoundException("WARC file not found: " + fileName);
+    }
+
+    @Override
+    public void close() {
+        backgroundIndexer.shutdownNow();
+    }
+
+    static String baseName(String fileName) {
+        if (fileName.endsWith(OPEN_SUFFIX)) {
+            return fileName.substring(0, fileName.length() - OPEN_SUFFIX.length());
+        }
+        return fileName;
+    }
+}
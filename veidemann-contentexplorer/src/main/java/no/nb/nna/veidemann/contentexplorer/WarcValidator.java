@@ -0,0 +1,233 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import org.jwat.common.Diagnosis;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+
+/**
+ * Validates WARC files and verifies block and payload digests.
+ * <p>
+ * Record boundaries are taken from the record index, so a file is split at exact record (and gzip member) boundaries
+ * and the records are verified in parallel on a fork-join pool. All reads are positional reads on the shared channel
+ * from the {@link WarcFileCache}.
+ */
+public class WarcValidator implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarcValidator.class);
+
+    /**
+     * Tasks with fewer records than this are not split further.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 32;
+
+    private final WarcIndexManager indexManager;
+
+    private final WarcFileCache fileCache;
+
+    private final ForkJoinPool pool;
+
+    public WarcValidator(WarcIndexManager indexManager, WarcFileCache fileCache, int parallelism) {
+        this.indexManager = indexManager;
+        this.fileCache = fileCache;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Validate all records in a WARC file.
+     *
+     * @param fileName the name of the WARC file, with or without the '.open' suffix
+     * @return the result
+     * @throws IOException if the file could not be read
+     */
+    public FileReport validate(String fileName) throws IOException {
+        long start = System.nanoTime();
+        WarcIndex index = indexManager.getIndex(fileName);
+        List<WarcIndexEntry> entries = index.getEntries();
+
+        List<RecordReport> problems;
+        long fileLength;
+        boolean open;
+        try (WarcFileCache.Lease lease = fileCache.acquire(fileName)) {
+            fileLength = lease.getChannel().size();
+            open = lease.getFile().getName().endsWith(WarcIndexManager.OPEN_SUFFIX);
+            problems = pool.invoke(new ValidateTask(lease, index.isCompressed(), entries, 0, entries.size()));
+        }
+
+        List<String> fileErrors = new ArrayList<>();
+        if (!open && index.getIndexedLength() < fileLength) {
+            // Indexing stops at the first record which can not be parsed
+            fileErrors.add("Unparseable data from offset " + index.getIndexedLength() + " to end of file at "
+                    + fileLength);
+        }
+
+        FileReport report = new FileReport(index.getFileName(), entries.size(), fileLength, fileErrors, problems,
+                System.nanoTime() - start);
+        LOG.debug("Validated {}: {} records, {} with problems, {} MB/s", report.fileName, report.records,
+                problems.size(), String.format("%.1f", report.bytesPerSecond / 1000000d));
+        return report;
+    }
+
+    private static RecordReport validateRecord(WarcFileCache.Lease lease, boolean compressed, WarcIndexEntry entry) {
+        try (InputStream in = new BufferedInputStream(lease.openStream(entry.getOffset()))) {
+            WarcReader reader = compressed ? WarcReaderFactory.getReaderCompressed(in)
+                    : WarcReaderFactory.getReaderUncompressed(in);
+            reader.setBlockDigestEnabled(true);
+            reader.setPayloadDigestEnabled(true);
+            try {
+                WarcRecord record = reader.getNextRecord();
+                if (record == null) {
+                    return new RecordReport(entry, Collections.singletonList("No record found"),
+                            Collections.emptyList());
+                }
+                // Reads the rest of the record and computes digests. Digest mismatches are reported as diagnostics
+                record.close();
+
+                List<String> errors = toMessages(record.diagnostics.getErrors());
+                if (!record.isCompliant() && errors.isEmpty()) {
+                    errors.add("Record is not compliant");
+                }
+                List<String> warnings = toMessages(record.diagnostics.getWarnings());
+                if (errors.isEmpty() && warnings.isEmpty()) {
+                    return null;
+                }
+                return new RecordReport(entry, errors, warnings);
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            return new RecordReport(entry, Collections.singletonList(e.toString()), Collections.emptyList());
+        }
+    }
+
+    private static List<String> toMessages(List<Diagnosis> diagnoses) {
+        return diagnoses.stream()
+                .map(d -> d.type + ":" + d.entity + ":" + Arrays.toString(d.getMessageArgs()))
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private static class ValidateTask extends RecursiveTask<List<RecordReport>> {
+        private final WarcFileCache.Lease lease;
+        private final boolean compressed;
+        private final List<WarcIndexEntry> entries;
+        private final int from;
+        private final int to;
+
+        private ValidateTask(WarcFileCache.Lease lease, boolean compressed, List<WarcIndexEntry> entries,
+                             int from, int to) {
+            this.lease = lease;
+            this.compressed = compressed;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<RecordReport> compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                List<RecordReport> problems = new ArrayList<>();
+                for (int i = from; i < to; i++) {
+                    RecordReport r = validateRecord(lease, compressed, entries.get(i));
+                    if (r != null) {
+                        problems.add(r);
+                    }
+                }
+                return problems;
+            }
+            int mid = (from + to) >>> 1;
+            ValidateTask left = new ValidateTask(lease, compressed, entries, from, mid);
+            left.fork();
+            List<RecordReport> problems = new ArrayList<>(new ValidateTask(lease, compressed, entries, mid, to).compute());
+            problems.addAll(0, left.join());
+            return problems;
+        }
+    }
+
+    /**
+     * The result of validating one file.
+     */
+    public static class FileReport {
+        private final String fileName;
+        private final boolean valid;
+        private final int records;
+        private final long bytes;
+        private final double seconds;
+        private final double bytesPerSecond;
+        private final List<String> errors;
+        private final List<RecordReport> invalidRecords;
+
+        private FileReport(String fileName, int records, long bytes, List<String> errors,
+                           List<RecordReport> invalidRecords, long nanos) {
+            this.fileName = fileName;
+            this.valid = errors.isEmpty() && invalidRecords.stream().allMatch(r -> r.errors.isEmpty());
+            this.records = records;
+            this.bytes = bytes;
+            this.seconds = nanos / 1e9;
+            this.bytesPerSecond = seconds > 0 ? bytes / seconds : 0;
+            this.errors = errors;
+            this.invalidRecords = invalidRecords;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+    }
+
+    /**
+     * Errors and warnings for one record.
+     */
+    public static class RecordReport {
+        private final String recordId;
+        private final long offset;
+        private final String type;
+        private final String targetUri;
+        private final List<String> errors;
+        private final List<String> warnings;
+
+        private RecordReport(WarcIndexEntry entry, List<String> errors, List<String> warnings) {
+            this.recordId = entry.getRecordId();
+            this.offset = entry.getOffset();
+            this.type = entry.getType();
+            this.targetUri = entry.getTargetUri();
+            this.errors = errors;
+            this.warnings = warnings;
+        }
+    }
+}
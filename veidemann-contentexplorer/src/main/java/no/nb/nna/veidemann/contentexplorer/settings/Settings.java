@@ -15,6 +15,7 @@
  */
 package no.nb.nna.veidemann.contentexplorer.settings;
 
+import com.typesafe.config.ConfigMemorySize;
 import no.nb.nna.veidemann.commons.settings.CommonSettings;
 
 /**
@@ -26,6 +27,26 @@ public class Settings extends CommonSettings {
 
     private String warcDir;
 
+    private String indexDir;
+
+    private int maxOpenWarcFiles;
+
+    private int maxCachedIndexes;
+
+    private int lookupThreads;
+
+    private int scanThreads;
+
+    private int maxQueuedRequests;
+
+    private int validatorThreads;
+
+    private int prometheusPort;
+
+    private ConfigMemorySize payloadCacheSize;
+
+    private ConfigMemorySize maxCachedPayloadSize;
+
     private boolean unsafe;
 
     public int getApiPort() {
@@ -44,6 +65,86 @@ public class Settings extends CommonSettings {
         this.warcDir = warcDir;
     }
 
+    public String getIndexDir() {
+        return indexDir;
+    }
+
+    public void setIndexDir(String indexDir) {
+        this.indexDir = indexDir;
+    }
+
+    public int getMaxOpenWarcFiles() {
+        return maxOpenWarcFiles;
+    }
+
+    public void setMaxOpenWarcFiles(int maxOpenWarcFiles) {
+        this.maxOpenWarcFiles = maxOpenWarcFiles;
+    }
+
+    public int getMaxCachedIndexes() {
+        return maxCachedIndexes;
+    }
+
+    public void setMaxCachedIndexes(int maxCachedIndexes) {
+        this.maxCachedIndexes = maxCachedIndexes;
+    }
+
+    public int getLookupThreads() {
+        return lookupThreads;
+    }
+
+    public void setLookupThreads(int lookupThreads) {
+        this.lookupThreads = lookupThreads;
+    }
+
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    public int getValidatorThreads() {
+        return validatorThreads;
+    }
+
+    public void setValidatorThreads(int validatorThreads) {
+        this.validatorThreads = validatorThreads;
+    }
+
+    public int getPrometheusPort() {
+        return prometheusPort;
+    }
+
+    public void setPrometheusPort(int prometheusPort) {
+        this.prometheusPort = prometheusPort;
+    }
+
+    public ConfigMemorySize getPayloadCacheSize() {
+        return payloadCacheSize;
+    }
+
+    public void setPayloadCacheSize(ConfigMemorySize payloadCacheSize) {
+        this.payloadCacheSize = payloadCacheSize;
+    }
+
+    public ConfigMemorySize getMaxCachedPayloadSize() {
+        return maxCachedPayloadSize;
+    }
+
+    public void setMaxCachedPayloadSize(ConfigMemorySize maxCachedPayloadSize) {
+        this.maxCachedPayloadSize = maxCachedPayloadSize;
+    }
+
     public boolean isUnsafe() {
         return unsafe;
     }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.contentexplorer;
+
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class ByteRangeTest {
+
+    @Test
+    public void parsesClosedRange() {
+        ByteRange range = ByteRange.parse("bytes=10-19", 100);
+
+        assertThat(range.getStart()).isEqualTo(10);
+        assertThat(range.getEnd()).isEqualTo(19);
+        assertThat(range.getLength()).isEqualTo(10);
+        assertThat(range.toContentRange()).isEqualTo("bytes 10-19/100");
+    }
+
+    @Test
+    public void parsesOpenEndedRange() {
+        ByteRange range = ByteRange.parse("bytes=90-", 100);
+
+        assertThat(range.getStart()).isEqualTo(90);
+        assertThat(range.getEnd()).isEqualTo(99);
+        assertThat(range.toContentRange()).isEqualTo("bytes 90-99/100");
+    }
+
+    @Test
+    public void parsesSuffixRange() {
+        ByteRange range = ByteRange.parse("bytes=-10", 100);
+
+        assertThat(range.getStart()).isEqualTo(90);
+        assertThat(range.getEnd()).isEqualTo(99);
+    }
+
+    @Test
+    public void suffixLongerThanEntityReturnsWholeEntity() {
+        ByteRange range = ByteRange.parse("bytes=-500", 100);
+
+        assertThat(range.getStart()).isEqualTo(0);
+        assertThat(range.getEnd()).isEqualTo(99);
+    }
+
+    @Test
+    public void clampsEndToEntityLength() {
+        ByteRange range = ByteRange.parse("bytes=50-1000", 100);
+
+        assertThat(range.getStart()).isEqualTo(50);
+        assertThat(range.getEnd()).isEqualTo(99);
+        assertThat(range.getLength()).isEqualTo(50);
+    }
+
+    @Test
+    public void startBeyondEntityIsNotSatisfiable() {
+        assertNotSatisfiable("bytes=100-", 100);
+        assertNotSatisfiable("bytes=200-300", 100);
+    }
+
+    @Test
+    public void zeroSuffixIsNotSatisfiable() {
+        assertNotSatisfiable("bytes=-0", 100);
+    }
+
+    @Test
+    public void emptyEntityIsNotSatisfiable() {
+        assertNotSatisfiable("bytes=-10", 0);
+    }
+
+    @Test
+    public void ignoresMultipleRanges() {
+        assertThat(ByteRange.parse("bytes=0-9,20-29", 100)).isNull();
+    }
+
+    @Test
+    public void ignoresInvalidHeaders() {
+        assertThat(ByteRange.parse(null, 100)).isNull();
+        assertThat(ByteRange.parse("items=0-9", 100)).isNull();
+        assertThat(ByteRange.parse("bytes=10", 100)).isNull();
+        assertThat(ByteRange.parse("bytes=a-b", 100)).isNull();
+    }
+
+    @Test
+    public void ignoresRangeWithLastBeforeFirst() {
+        assertThat(ByteRange.parse("bytes=5-3", 100)).isNull();
+    }
+
+    private static void assertNotSatisfiable(String header, long total) {
+        try {
+            ByteRange.parse(header, total);
+            fail("Expected 416 for " + header);
+        } catch (WebApplicationException e) {
+            Response response = e.getResponse();
+            assertThat(response.getStatus()).isEqualTo(416);
+            assertThat(response.getHeaderString("Content-Range")).isEqualTo("bytes */" + total);
+        }
+    }
+}
@@ -106,6 +106,17 @@ public class BrowserControllerService extends BrowserControllerGrpc.BrowserContr
                             break;
                         }
 
+                        if (session == null) {
+                            // The page for this proxy is already done. Late requests must not be credited to the
+                            // next page leasing the same proxy.
+                            LOG.debug("No browser session for proxy {}, canceling request",
+                                    value.getNew().getProxyId());
+                            responseObserver.onNext(DoReply.newBuilder()
+                                    .setCancel("No browser session for proxy " + value.getNew().getProxyId())
+                                    .build());
+                            break;
+                        }
+
                         proxyRequest = session.getCrawlLogs().registerProxyRequest(value.getNew().getUri());
                         proxyRequest.setResponseObserver(responseObserver);
                         proxyRequest.setCollectionRef(session.getCollectionRef());
@@ -127,11 +138,15 @@ public class BrowserControllerService extends BrowserControllerGrpc.BrowserContr
 
                         break;
                     case NOTIFY:
-                        Activity activity = value.getNotify().getActivity();
-                        proxyRequest.notifyActivity(activity);
+                        if (proxyRequest != null) {
+                            Activity activity = value.getNotify().getActivity();
+                            proxyRequest.notifyActivity(activity);
+                        }
                         break;
                     case COMPLETED:
-                        proxyRequest.setCrawlLog(value.getCompleted().getCrawlLog(), value.getCompleted().getCached());
+                        if (proxyRequest != null) {
+                            proxyRequest.setCrawlLog(value.getCompleted().getCrawlLog(), value.getCompleted().getCached());
+                        }
                         break;
                     case ACTION_NOT_SET:
                         String msg = "Browser controller api was called without action";
@@ -51,9 +51,19 @@ public class BrowserSessionRegistry {
         return removed;
     }
 
+    /**
+     * Remove a session, unless the proxy id has already been taken over by another session.
+     *
+     * @param session the session to remove
+     * @return the removed session or null if it was not registered
+     */
     public synchronized BrowserSession remove(BrowserSession session) {
         Objects.requireNonNull(session);
-        return remove(session.getProxyId());
+        if (!proxyIdToSession.remove(session.getProxyId(), session)) {
+            return null;
+        }
+        FrontierClient.activeBrowserSessions.set(size());
+        return session;
     }
 
     public boolean isEmpty() {
@@ -26,11 +26,14 @@ import no.nb.nna.veidemann.commons.client.RobotsServiceClient;
 import no.nb.nna.veidemann.commons.db.DbService;
 import no.nb.nna.veidemann.commons.opentracing.TracerFactory;
 import no.nb.nna.veidemann.harvester.browsercontroller.BrowserController;
+import no.nb.nna.veidemann.harvester.browsercontroller.HostTimingStats;
+import no.nb.nna.veidemann.harvester.browsercontroller.SessionReaper;
 import no.nb.nna.veidemann.harvester.settings.Settings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 
 /**
  * Class for launching the service.
@@ -80,7 +83,10 @@ public class Harvester {
                      SETTINGS.getContentWriterHost(), SETTINGS.getContentWriterPort());
 
              BrowserController controller = new BrowserController(SETTINGS.getBrowserWSEndpoint(), sessionRegistry,
-                     contentWriterClient);
+                     contentWriterClient,
+                     new SessionReaper(SETTINGS.getMaxOpenSessions(), SETTINGS.getSessionTeardownDeadlineMs()),
+                     new HostTimingStats(Paths.get(SETTINGS.getWorkDir(), "host-timing-stats.tsv"),
+                             SETTINGS.isAdaptiveTimeouts()));
 
              FrontierClient frontierClient = new FrontierClient(controller, SETTINGS.getFrontierHost(),
                      SETTINGS.getFrontierPort(), SETTINGS.getMaxOpenSessions(), SETTINGS.getBrowserWSEndpoint(),
@@ -18,14 +18,18 @@ package no.nb.nna.veidemann.harvester.browsercontroller;
 import io.opentracing.Span;
 import io.opentracing.tag.Tags;
 import io.opentracing.util.GlobalTracer;
+import io.prometheus.client.Counter;
+import no.nb.nna.veidemann.api.config.v1.BrowserConfig;
 import no.nb.nna.veidemann.api.config.v1.ConfigObject;
 import no.nb.nna.veidemann.api.config.v1.ConfigRef;
 import no.nb.nna.veidemann.api.config.v1.Kind;
 import no.nb.nna.veidemann.api.config.v1.ListRequest;
 import no.nb.nna.veidemann.api.frontier.v1.PageLog;
+import no.nb.nna.veidemann.api.frontier.v1.PageLog.Resource;
 import no.nb.nna.veidemann.api.frontier.v1.QueuedUri;
 import no.nb.nna.veidemann.chrome.client.ChromeDebugProtocol;
 import no.nb.nna.veidemann.chrome.client.ChromeDebugProtocolConfig;
+import no.nb.nna.veidemann.chrome.client.EndpointUnavailableException;
 import no.nb.nna.veidemann.commons.ExtraStatusCodes;
 import no.nb.nna.veidemann.commons.VeidemannHeaderConstants;
 import no.nb.nna.veidemann.commons.client.ContentWriterClient;
@@ -43,6 +47,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -51,6 +56,13 @@ public class BrowserController implements AutoCloseable, VeidemannHeaderConstant
 
     private static final Logger LOG = LoggerFactory.getLogger(BrowserController.class);
 
+    private static final Counter pageLogFailuresTotal = Counter.build()
+            .namespace("veidemann")
+            .subsystem("harvester")
+            .name("page_log_failures_total")
+            .help("Total page logs which could not be written")
+            .register();
+
     private final String browserWSEndpoint;
 
     private final ChromeDebugProtocol chrome;
@@ -59,13 +71,26 @@ public class BrowserController implements AutoCloseable, VeidemannHeaderConstant
 
     private final BrowserSessionRegistry sessionRegistry;
 
+    private final SessionReaper sessionReaper;
+
+    private final HostTimingStats hostTimingStats;
+
     private final Map<ConfigRef, ConfigObject> scriptCache = new HashMap<>();
 
     private final ContentWriterClient contentWriterClient;
 
     public BrowserController(final String browserWSEndpoint, final BrowserSessionRegistry sessionRegistry,
                              final ContentWriterClient contentWriterClient) {
+        this(browserWSEndpoint, sessionRegistry, contentWriterClient, new SessionReaper(1, 30000L),
+                new HostTimingStats(false));
+    }
+
+    public BrowserController(final String browserWSEndpoint, final BrowserSessionRegistry sessionRegistry,
+                             final ContentWriterClient contentWriterClient, final SessionReaper sessionReaper,
+                             final HostTimingStats hostTimingStats) {
         this.browserWSEndpoint = browserWSEndpoint;
+        this.sessionReaper = sessionReaper;
+        this.hostTimingStats = hostTimingStats;
         this.contentWriterClient = contentWriterClient;
 
         chromeDebugProtocolConfig = new ChromeDebugProtocolConfig()
@@ -98,6 +123,7 @@ public class BrowserController implements AutoCloseable, VeidemannHeaderConstant
         MDC.put("eid", queuedUri.getExecutionId());
         MDC.put("uri", queuedUri.getUri());
 
+        String host = HostTimingStats.hostOf(queuedUri.getUri());
         ConfigObject browserConfig = null;
         BrowserSession session = null;
         try {
@@ -105,15 +131,23 @@ public class BrowserController implements AutoCloseable, VeidemannHeaderConstant
                     .getConfigObject(crawlConfig.getCrawlConfig().getBrowserConfigRef());
             ConfigObject politenessConfig = DbService.getInstance().getConfigAdapter()
                     .getConfigObject(crawlConfig.getCrawlConfig().getPolitenessRef());
+            BrowserConfig bc = browserConfig.getBrowserConfig();
+            HostTimingStats.Timeouts timeouts = hostTimingStats.getTimeouts(host, bc.getPageLoadTimeoutMs(),
+                    bc.getMaxInactivityTimeMs());
             session = new BrowserSession(proxyId, chrome.connect(protocolConfig), crawlConfig,
-                    browserConfig, politenessConfig, getScripts(browserConfig), queuedUri, span);
+                    browserConfig, timeouts, politenessConfig, getScripts(browserConfig), queuedUri, span);
         } catch (Exception t) {
             if (session != null) {
                 session.close();
             }
             span.finish();
 
-            LOG.error("Failed creating session", t);
+            if (t.getCause() instanceof EndpointUnavailableException) {
+                // Browser is known to be down, no need for a stack trace on every render
+                LOG.warn("Failed creating session: {}", t.getCause().getMessage());
+            } else {
+                LOG.error("Failed creating session", t);
+            }
             result.withError(ExtraStatusCodes.RUNTIME_EXCEPTION.toFetchError(t.toString()));
 
             return result;
@@ -126,6 +160,9 @@ public class BrowserController implements AutoCloseable, VeidemannHeaderConstant
             session.setCookies();
             session.loadPage();
             session.getCrawlLogs().waitForMatcherToFinish();
+            hostTimingStats.record(host, session.getCrawlLogs().getTimeToRootResponseMs(),
+                    session.getCrawlLogs().getFetchTimeMs(), (int) session.getUriRequests().getRequestStream().count(),
+                    session.getCrawlLogs().isTimedOut(), browserConfig.getBrowserConfig().getPageLoadTimeoutMs());
 
             ExtraStatusCodes eCode = ExtraStatusCodes.fromCode(session.getUriRequests().getRootRequest().getStatusCode());
             if (eCode != null) {
@@ -156,7 +193,7 @@ public class BrowserController implements AutoCloseable, VeidemannHeaderConstant
                     }
 
                     try {
-                        PageLog.Builder pageLog = PageLog.newBuilder()
+                        final PageLog.Builder pageLog = PageLog.newBuilder()
                                 .setUri(queuedUri.getUri())
                                 .setJobExecutionId(queuedUri.getJobExecutionId())
                                 .setExecutionId(queuedUri.getExecutionId());
@@ -164,15 +201,30 @@ public class BrowserController implements AutoCloseable, VeidemannHeaderConstant
                             LOG.error("Missing initial request");
                         } else {
                             pageLog.setWarcId(initialRequest.getWarcId())
-                                    .setReferrer(initialRequest.getReferrer())
                                     .setCollectionFinalName(initialRequest.getCrawlLog().getCollectionFinalName())
                                     .setMethod(initialRequest.getMethod());
                         }
 
-                        session.getUriRequests().getPageLogResources().forEach(r -> pageLog.addResource(r));
                         result.getOutlinks().forEach(o -> pageLog.addOutlink(o.getUri()));
+
+                        // Referrers and discovery paths are resolved from protocol events, so wait no longer for them
+                        // than for a protocol reply. The future completes with what is known at the deadline, the
+                        // bound on get is only a safeguard.
+                        long deadlineMs = protocolConfig.getProtocolTimeoutMs();
+                        List<Resource> resources = session.getUriRequests().getPageLogResources(deadlineMs)
+                                .get(2 * deadlineMs, TimeUnit.MILLISECONDS);
+                        pageLog.addAllResource(resources);
+                        if (initialRequest != null) {
+                            // Resolved by now, or not within the deadline
+                            pageLog.setReferrer(initialRequest.getReferrer());
+                        }
                         DbService.getInstance().getExecutionsAdapter().savePageLog(pageLog.build());
+                    } catch (InterruptedException t) {
+                        Thread.currentThread().interrupt();
+                        pageLogFailuresTotal.inc();
+                        LOG.error("Interrupted while writing pagelog");
                     } catch (Exception t) {
+                        pageLogFailuresTotal.inc();
                         LOG.error("Failed writing pagelog", t);
                     }
                 }
@@ -187,8 +239,11 @@ public class BrowserController implements AutoCloseable, VeidemannHeaderConstant
         }
 
         try {
-            session.close();
+            // The page is done and the crawl logs are written. Stop the page so it can't send more requests through
+            // the proxy, then release the proxy slot and leave disconnecting from the browser to the reaper.
+            session.stopPage(protocolConfig.getProtocolTimeoutMs());
             sessionRegistry.remove(session);
+            sessionReaper.reap(session);
         } finally {
             span.finish();
         }
@@ -228,6 +283,8 @@ public class BrowserController implements AutoCloseable, VeidemannHeaderConstant
 
     @Override
     public void close() {
+        sessionReaper.close();
+        hostTimingStats.close();
         chrome.close();
     }
 
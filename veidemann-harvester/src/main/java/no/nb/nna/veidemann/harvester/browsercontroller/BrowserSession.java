@@ -42,6 +42,7 @@ import no.nb.nna.veidemann.chrome.client.PageDomain;
 import no.nb.nna.veidemann.chrome.client.PageSession;
 import no.nb.nna.veidemann.chrome.client.RuntimeDomain;
 import no.nb.nna.veidemann.chrome.client.SessionClosedException;
+import no.nb.nna.veidemann.chrome.client.ws.EventSubscriptionGroup;
 import no.nb.nna.veidemann.commons.VeidemannHeaderConstants;
 import no.nb.nna.veidemann.commons.client.ContentWriterClient;
 import no.nb.nna.veidemann.commons.client.ContentWriterClient.ContentWriterSession;
@@ -92,12 +93,18 @@ public class BrowserSession implements AutoCloseable, VeidemannHeaderConstants {
 
     final UriRequestRegistry uriRequests;
 
+    /**
+     * Listeners registered for this page, removed when the session is closed.
+     */
+    final EventSubscriptionGroup listeners = new EventSubscriptionGroup();
+
     private final CrawlLogRegistry crawlLogs;
 
     volatile boolean closed = false;
 
     public BrowserSession(int proxyId, BrowserClient browser, ConfigObject crawlConfig, ConfigObject browserConfig,
-                          ConfigObject politenessConfig, List<ConfigObject> scripts, QueuedUri queuedUri, BaseSpan span)
+                          HostTimingStats.Timeouts timeouts, ConfigObject politenessConfig, List<ConfigObject> scripts,
+                          QueuedUri queuedUri, BaseSpan span)
             throws IOException, ExecutionException, TimeoutException {
 
         this.crawlConfig = crawlConfig;
@@ -110,8 +117,8 @@ public class BrowserSession implements AutoCloseable, VeidemannHeaderConstants {
         this.browser = browser;
         // Ensure that we at least wait a second even if the configuration says less.
         BrowserConfig bc = browserConfig.getBrowserConfig();
-        long maxIdleTime = Math.max(bc.getMaxInactivityTimeMs(), 1000);
-        crawlLogs = new CrawlLogRegistry(this, bc.getPageLoadTimeoutMs(), maxIdleTime);
+        long maxIdleTime = Math.max(timeouts.getMaxIdleTimeMs(), 1000);
+        crawlLogs = new CrawlLogRegistry(this, timeouts.getPageLoadTimeoutMs(), maxIdleTime);
         uriRequests = new UriRequestRegistry(crawlLogs, queuedUri, span);
 
         session = browser.newPage(bc.getWindowWidth(), bc.getWindowHeight());
@@ -131,6 +138,7 @@ public class BrowserSession implements AutoCloseable, VeidemannHeaderConstants {
 //        session.debugger().enable().run();
         session.network().enable().run();
         session.page().enable().run();
+        session.page().setLifecycleEventsEnabled(true).run();
         session.runtime().enable().run();
 //        session.security().enable().run();
 
@@ -146,13 +154,15 @@ public class BrowserSession implements AutoCloseable, VeidemannHeaderConstants {
         List<RequestPattern> requestPatterns = ImmutableList.of(rp1, rp2);
 
         // set up listeners
-        session.network().onRequestWillBeSent(r -> {
+        listeners.add(session.network().onRequestWillBeSent(r -> {
             uriRequests.onRequestWillBeSent(r);
-        });
-        session.network().onLoadingFinished(f -> uriRequests.onLoadingFinished(f));
-        session.network().onLoadingFailed(f -> uriRequests.onLoadingFailed(f));
-        session.network().onResponseReceived(l -> uriRequests.onResponseReceived(l));
-        session.network().onDataReceived(d -> uriRequests.onDataReceived(d));
+        }));
+        listeners.add(session.network().onLoadingFinished(f -> uriRequests.onLoadingFinished(f)));
+        listeners.add(session.network().onLoadingFailed(f -> uriRequests.onLoadingFailed(f)));
+        listeners.add(session.network().onResponseReceived(l -> uriRequests.onResponseReceived(l)));
+        listeners.add(session.network().onDataReceived(d -> uriRequests.onDataReceived(d)));
+        listeners.add(session.page().onLoadEventFired(l -> crawlLogs.signalPageLoaded()));
+        listeners.add(session.page().onLifecycleEvent(l -> crawlLogs.signalPageLifecycleEvent(l.frameId(), l.loaderId(), l.name())));
 
         session.page().setDownloadBehavior("allow").withDownloadPath("/dev/null").run();
 
@@ -236,20 +246,22 @@ public class BrowserSession implements AutoCloseable, VeidemannHeaderConstants {
     public void loadPage() throws ClientClosedException, SessionClosedException {
         try {
             // TODO: Handling of dialogs should be configurable
-            session.page().onJavascriptDialogOpening(js -> {
+            listeners.add(session.page().onJavascriptDialogOpening(js -> {
                 LOG.debug("JS dialog: {} :: {}", js.type(), js.message());
                 boolean accept = false;
                 if ("alert".equals(js.type())) {
                     accept = true;
                 }
                 try {
-                    session.page().handleJavaScriptDialog(accept);
+                    session.page().handleJavaScriptDialog(accept).runAsync();
                 } catch (ClientClosedException | SessionClosedException e) {
                     LOG.error(e.getMessage(), e);
                 }
-            });
+            }));
 
-            session.page().navigate(queuedUri.getUri()).withReferrer(queuedUri.getReferrer()).withTransitionType("link").run();
+            PageDomain.NavigateResponse nav = session.page().navigate(queuedUri.getUri())
+                    .withReferrer(queuedUri.getReferrer()).withTransitionType("link").run();
+            crawlLogs.signalNavigationCommitted(nav.frameId(), nav.loaderId());
         } catch (ExecutionException | TimeoutException ex) {
             throw new RuntimeException(ex);
         }
@@ -565,9 +577,38 @@ public class BrowserSession implements AutoCloseable, VeidemannHeaderConstants {
         return closed;
     }
 
+    /**
+     * Stop the page from making more requests.
+     * <p>
+     * Network events are disabled and the page is navigated to about:blank, so that no requests from this page
+     * reach the proxy after the session is removed from the registry. Disconnecting from the browser is left to
+     * {@link #close()}.
+     *
+     * @param timeoutMs max time to wait for the browser
+     * @return true if the page was stopped within the timeout
+     */
+    public boolean stopPage(long timeoutMs) {
+        try {
+            CompletableFuture.allOf(
+                    session.network().disable().runAsync(),
+                    session.page().navigate("about:blank").runAsync())
+                    .get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while stopping page");
+        } catch (ClientClosedException | SessionClosedException e) {
+            LOG.debug("Page already closed: {}", e.getMessage());
+        } catch (ExecutionException | TimeoutException e) {
+            LOG.warn("Could not stop page within {}ms: {}", timeoutMs, e.toString());
+        }
+        return false;
+    }
+
     @Override
     public void close() {
         closed = true;
+        listeners.close();
         session.close();
         if (browser != null) {
             browser.close();
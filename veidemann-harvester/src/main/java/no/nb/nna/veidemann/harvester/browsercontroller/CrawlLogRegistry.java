@@ -17,6 +17,7 @@ package no.nb.nna.veidemann.harvester.browsercontroller;
 
 import com.google.protobuf.Timestamp;
 import io.grpc.stub.StreamObserver;
+import io.prometheus.client.Counter;
 import no.nb.nna.veidemann.api.browsercontroller.v1.DoReply;
 import no.nb.nna.veidemann.api.browsercontroller.v1.NotifyActivity.Activity;
 import no.nb.nna.veidemann.api.config.v1.Collection.SubCollectionType;
@@ -47,6 +48,18 @@ import java.util.concurrent.locks.ReentrantLock;
 public class CrawlLogRegistry {
     private static final Logger LOG = LoggerFactory.getLogger(CrawlLogRegistry.class);
 
+    private static final String METRICS_NS = "veidemann";
+
+    private static final String METRICS_SUBSYSTEM = "harvester";
+
+    private static final Counter pageCompletionsTotal = Counter.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("page_completions_total")
+            .help("Total pages finished, by how completion was detected (quiescent, idle or timeout)")
+            .labelNames("reason")
+            .register();
+
     private final BrowserSession browserSession;
 
     private final List<Entry> crawlLogs = new ArrayList<>();
@@ -60,6 +73,22 @@ public class CrawlLogRegistry {
     private final MatchStatus status = new MatchStatus();
     private final long startTime = System.currentTimeMillis();
     private long lastActivityTime = System.currentTimeMillis();
+    private volatile long rootResponseTime = -1;
+    private volatile boolean timedOut = false;
+
+    /**
+     * Incremented on every update signal, so that the matcher can tell if anything happened since it last matched.
+     */
+    private long updateCount = 0;
+    private long matchedUpdateCount = -1;
+
+    /**
+     * State of the document loading in the main frame. Set from page lifecycle events.
+     */
+    private String mainFrameId;
+    private String mainLoaderId;
+    private boolean pageLoaded = false;
+    private boolean networkIdle = false;
 
     public class Entry implements BrowserControllerService.ProxyRequest {
         final String uri;
@@ -113,7 +142,7 @@ public class CrawlLogRegistry {
                 }
 
                 lastActivityTime = System.currentTimeMillis();
-                crawlLogsUpdate.signalAll();
+                signalUpdate();
             } finally {
                 crawlLogsLock.unlock();
             }
@@ -200,7 +229,7 @@ public class CrawlLogRegistry {
             Entry crawlLogEntry = new Entry(uri, browserSession);
             crawlLogs.add(crawlLogEntry);
             lastActivityTime = System.currentTimeMillis();
-            crawlLogsUpdate.signalAll();
+            signalUpdate();
             return crawlLogEntry;
         } finally {
             crawlLogsLock.unlock();
@@ -211,7 +240,7 @@ public class CrawlLogRegistry {
         crawlLogsLock.lock();
         try {
             lastActivityTime = System.currentTimeMillis();
-            crawlLogsUpdate.signalAll();
+            signalUpdate();
         } finally {
             crawlLogsLock.unlock();
         }
@@ -226,10 +255,145 @@ public class CrawlLogRegistry {
         }
     }
 
+    /**
+     * Called when navigation of the main frame is committed.
+     *
+     * @param frameId  the id of the main frame
+     * @param loaderId the id of the loader for the new document
+     */
+    public void signalNavigationCommitted(String frameId, String loaderId) {
+        crawlLogsLock.lock();
+        try {
+            mainFrameId = frameId;
+            if (loaderId != null && !loaderId.equals(mainLoaderId)) {
+                if (mainLoaderId != null) {
+                    pageLoaded = false;
+                    networkIdle = false;
+                }
+                mainLoaderId = loaderId;
+            }
+            signalUpdate();
+        } finally {
+            crawlLogsLock.unlock();
+        }
+    }
+
+    /**
+     * Called when the page's load event has fired.
+     */
+    public void signalPageLoaded() {
+        crawlLogsLock.lock();
+        try {
+            if (mainLoaderId != null) {
+                pageLoaded = true;
+                signalUpdate();
+            }
+        } finally {
+            crawlLogsLock.unlock();
+        }
+    }
+
+    /**
+     * Called for page lifecycle events.
+     * <p>
+     * Events for other frames than the main frame, or for other documents than the one being loaded, are ignored.
+     * This also skips the events for the initial blank document, which are replayed when lifecycle events are
+     * enabled.
+     *
+     * @param frameId  the frame the event is for
+     * @param loaderId the loader the event is for
+     * @param name     the name of the event
+     */
+    public void signalPageLifecycleEvent(String frameId, String loaderId, String name) {
+        crawlLogsLock.lock();
+        try {
+            if (mainFrameId == null || !mainFrameId.equals(frameId)) {
+                return;
+            }
+            switch (name) {
+                case "init":
+                    if (!loaderId.equals(mainLoaderId)) {
+                        LOG.debug("New document loading in main frame");
+                        mainLoaderId = loaderId;
+                        pageLoaded = false;
+                        networkIdle = false;
+                        signalUpdate();
+                    }
+                    break;
+                case "networkIdle":
+                    if (loaderId.equals(mainLoaderId)) {
+                        networkIdle = true;
+                        signalUpdate();
+                    }
+                    break;
+            }
+        } finally {
+            crawlLogsLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called while holding {@link #crawlLogsLock}.
+     */
+    private void signalUpdate() {
+        updateCount++;
+        crawlLogsUpdate.signalAll();
+    }
+
+    /**
+     * Check if the page has finished loading and there are no requests in flight, neither in the browser nor in the
+     * proxy.
+     * <p>
+     * Must be called while holding {@link #crawlLogsLock}.
+     *
+     * @return true if the page is quiescent
+     */
+    private boolean isQuiescent() {
+        return pageLoaded && networkIdle
+                && crawlLogs.stream().allMatch(Entry::isResponseReceived)
+                && browserSession.getUriRequests().getInFlightCount() == 0;
+    }
+
+    private void finish(String reason) {
+        synchronized (finishLatch) {
+            if (finishLatch.getCount() > 0) {
+                timedOut = "timeout".equals(reason);
+                finishLatch.countDown();
+                pageCompletionsTotal.labels(reason).inc();
+            }
+        }
+    }
+
+    /**
+     * Called when a response for the root resource is received. For redirects this is called for every hop.
+     */
+    public void signalRootResponse() {
+        rootResponseTime = System.currentTimeMillis();
+    }
+
     public long getFetchTimeMs() {
         return lastActivityTime - startTime;
     }
 
+    /**
+     * Check if the page load timeout was reached before all crawl logs and requests were matched.
+     *
+     * @return true if the page load timed out
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Get the time from the start of the session until the last response for the root resource was received.
+     *
+     * @return the time in milliseconds or -1 if no response was received for the root resource
+     */
+    public long getTimeToRootResponseMs() {
+        long t = rootResponseTime;
+        return t < 0 ? -1 : t - startTime;
+    }
+
     private boolean isCrawlLogsResolved() {
         crawlLogsLock.lock();
         try {
@@ -248,9 +412,10 @@ public class CrawlLogRegistry {
             LOG.debug("Max idle time: {}", maxIdleTime);
 
             while (finishLatch.getCount() > 0) {
-                waitForIdle();
+                boolean quiescent = waitForIdle();
                 crawlLogsLock.lock();
                 try {
+                    matchedUpdateCount = updateCount;
                     innerMatchCrawlLogAndRequest(status, false);
 
                     if (!status.allHandled()) {
@@ -262,7 +427,7 @@ public class CrawlLogRegistry {
                     }
 
                     if (status.allHandled()) {
-                        finishLatch.countDown();
+                        finish(quiescent ? "quiescent" : "idle");
                     }
                 } catch (Exception e) {
                     LOG.error(e.toString(), e);
@@ -278,18 +443,29 @@ public class CrawlLogRegistry {
             }
         }
 
-        private void waitForIdle() {
+        /**
+         * Wait until the page is quiescent, or there has been no network activity for {@link #maxIdleTime}.
+         * <p>
+         * Quiescence is only checked if something was updated since the last time the matcher ran. Otherwise this
+         * falls back to idle timing.
+         *
+         * @return true if the page was found to be quiescent
+         */
+        private boolean waitForIdle() {
             crawlLogsLock.lock();
             try {
-                boolean running = true;
-                while (running) {
+                while (true) {
+                    if (finishLatch.getCount() > 0 && updateCount != matchedUpdateCount && isQuiescent()) {
+                        LOG.debug("Page is quiescent after {}ms", System.currentTimeMillis() - startTime);
+                        return true;
+                    }
+
                     boolean gotSignal = crawlLogsUpdate.await(maxIdleTime, TimeUnit.MILLISECONDS);
                     if (gotSignal) {
                         LOG.trace("Got activity signal");
                     }
                     if (finishLatch.getCount() == 0 || (System.currentTimeMillis() - lastActivityTime) >= maxIdleTime) {
                         LOG.debug("Timed out waiting for network activity");
-                        running = false;
 
                         long timeout = pageLoadTimeout - (System.currentTimeMillis() - startTime);
                         if (timeout > pageLoadTimeout) {
@@ -298,12 +474,14 @@ public class CrawlLogRegistry {
                         }
                         if (timeout < 0) {
                             LOG.info("Pageload timed out");
-                            finishLatch.countDown();
+                            finish("timeout");
                         }
+                        return false;
                     }
                 }
             } catch (InterruptedException e) {
                 LOG.error(e.toString(), e);
+                return false;
             } finally {
                 crawlLogsLock.unlock();
             }
@@ -372,7 +550,7 @@ public class CrawlLogRegistry {
             boolean success = finishLatch.await(timeout, TimeUnit.MILLISECONDS);
             if (!success) {
                 LOG.info("Pageload timed out");
-                finishLatch.countDown();
+                finish("timeout");
                 // Send signal to stop waitForIdle loop
                 signalRequestsUpdated();
             }
@@ -380,7 +558,7 @@ public class CrawlLogRegistry {
             return success;
         } catch (InterruptedException e) {
             LOG.info("Pageload interrupted", e);
-            finishLatch.countDown();
+            finish("timeout");
             // Send signal to stop waitForIdle loop
             signalRequestsUpdated();
             innerMatchCrawlLogAndRequest(status, true);
@@ -388,20 +566,9 @@ public class CrawlLogRegistry {
         }
     }
 
-    private boolean findRequestForCrawlLog(Entry crawlLogEntry, UriRequest r) {
-        if (r == null) {
-            return false;
-        }
-
-        if (innerFindRequestForCrawlLog(crawlLogEntry, r)) {
-            return true;
-        }
-        for (UriRequest c : r.getChildren()) {
-            if (findRequestForCrawlLog(crawlLogEntry, c)) {
-                return true;
-            }
-        }
-        return false;
+    private boolean findRequestForCrawlLog(Entry crawlLogEntry) {
+        return browserSession.getUriRequests().getRequestStream()
+                .anyMatch(r -> innerFindRequestForCrawlLog(crawlLogEntry, r));
     }
 
     private boolean uriEquals(String u1, String u2) {
@@ -507,7 +674,7 @@ public class CrawlLogRegistry {
         status.reset();
         if (!isCrawlLogsResolved()) {
             crawlLogs.stream().filter(e -> (!e.isResolved()))
-                    .forEach(e -> findRequestForCrawlLog(e, browserSession.getUriRequests().getInitialRequest()));
+                    .forEach(e -> findRequestForCrawlLog(e));
             if (!isCrawlLogsResolved()) {
                 if (lastInvocation) {
                     LOG.error("There are still unhandled crawl logs");
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.harvester.browsercontroller;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import org.netpreserve.commons.uri.UriConfigs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolling per host statistics of page loads, used for adapting page load timeout and idle time.
+ * <p>
+ * For each host, exponentially weighted mean and variance is kept for time to root response, time to quiescence, the
+ * activity time between them and number of resources. When there are enough samples for a host, the page load timeout
+ * is set from time to quiescence and the max idle time from activity time, but never above the values in the browser
+ * config. No gap between network events after the root response can be longer than the activity time, so it bounds the
+ * idle time a page from the host needs. Time to quiescence and time to root response are measured from the start of
+ * the browser session, the same way as the page load timeout.
+ * <p>
+ * The statistics are saved to a tab separated file at regular intervals and when closed, and loaded again on startup.
+ */
+public class HostTimingStats implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HostTimingStats.class);
+
+    private static final String METRICS_NS = "veidemann";
+
+    private static final String METRICS_SUBSYSTEM = "harvester";
+
+    private static final double[] TIME_BUCKETS = {.25, .5, 1, 2.5, 5, 10, 20, 30, 60, 120};
+
+    private static final Histogram timeToRootResponse = Histogram.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("page_time_to_root_response_seconds")
+            .help("Time from start of browser session until the response for the root resource was received")
+            .buckets(TIME_BUCKETS)
+            .register();
+
+    private static final Histogram timeToQuiescence = Histogram.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("page_time_to_quiescence_seconds")
+            .help("Time from start of browser session until the last network activity for pages which did not time out")
+            .buckets(TIME_BUCKETS)
+            .register();
+
+    private static final Histogram pageResources = Histogram.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("page_resources")
+            .help("Number of resources requested by the browser per page")
+            .buckets(1, 5, 10, 25, 50, 100, 250, 500, 1000)
+            .register();
+
+    private static final Gauge trackedHosts = Gauge.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("timing_stats_hosts")
+            .help("Number of hosts with page load statistics")
+            .register();
+
+    private static final Counter adaptedTimeoutsTotal = Counter.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("adapted_page_timeouts_total")
+            .help("Total page loads where timeouts were lowered from the configured values based on host statistics")
+            .register();
+
+    /**
+     * Weight of a new sample once a host has more than 1/ALPHA samples. Before that every sample has equal weight.
+     */
+    static final double ALPHA = 0.1;
+
+    /**
+     * Number of samples needed before timeouts are adapted for a host.
+     */
+    static final int MIN_SAMPLES = 5;
+
+    /**
+     * Timeouts are set to this factor times the mean plus three standard deviations.
+     */
+    static final double HEADROOM = 2.0;
+
+    static final long MIN_IDLE_TIME_MS = 1000L;
+
+    static final long MIN_PAGE_LOAD_TIMEOUT_MS = 10000L;
+
+    static final int MAX_HOSTS = 100000;
+
+    static final long SAVE_INTERVAL_MS = 60000L;
+
+    private final Path file;
+
+    private final boolean adaptive;
+
+    /**
+     * Least recently used hosts are dropped when there are more than {@link #MAX_HOSTS}.
+     */
+    private final Map<String, HostStats> hosts = new LinkedHashMap<String, HostStats>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HostStats> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+
+    private final ScheduledExecutorService saver;
+
+    private boolean dirty = false;
+
+    /**
+     * Create statistics which are only kept in memory.
+     *
+     * @param adaptive if false, statistics are only collected and timeouts are not changed
+     */
+    public HostTimingStats(boolean adaptive) {
+        this(null, adaptive);
+    }
+
+    /**
+     * Create statistics which are persisted to a file.
+     *
+     * @param file     the file to load statistics from and save them to, or null for only keeping them in memory
+     * @param adaptive if false, statistics are only collected and timeouts are not changed
+     */
+    public HostTimingStats(Path file, boolean adaptive) {
+        this.file = file;
+        this.adaptive = adaptive;
+        if (file == null) {
+            saver = null;
+        } else {
+            load();
+            saver = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "HostTimingStatsSaver");
+                t.setDaemon(true);
+                return t;
+            });
+            saver.scheduleWithFixedDelay(this::save, SAVE_INTERVAL_MS, SAVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get the host part of a uri.
+     *
+     * @param uri the uri
+     * @return the host or null if the uri could not be parsed
+     */
+    public static String hostOf(String uri) {
+        try {
+            String host = UriConfigs.WHATWG.buildUri(uri).getHost();
+            return host == null || host.isEmpty() ? null : host;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the timeouts to use for a page load.
+     *
+     * @param host                the host of the page
+     * @param pageLoadTimeoutMs   the configured page load timeout
+     * @param maxInactivityTimeMs the configured max inactivity time
+     * @return the timeouts, which are never higher than the configured values
+     */
+    public Timeouts getTimeouts(String host, long pageLoadTimeoutMs, long maxInactivityTimeMs) {
+        Timeouts configured = new Timeouts(pageLoadTimeoutMs, maxInactivityTimeMs);
+        if (!adaptive || host == null) {
+            return configured;
+        }
+
+        long idle = maxInactivityTimeMs;
+        long timeout = pageLoadTimeoutMs;
+        synchronized (this) {
+            HostStats s = hosts.get(host);
+            if (s == null) {
+                return configured;
+            }
+            if (s.activity.count >= MIN_SAMPLES) {
+                idle = bound((long) (HEADROOM * s.activity.upperEstimate()), MIN_IDLE_TIME_MS, maxInactivityTimeMs);
+            }
+            if (s.quiescence.count >= MIN_SAMPLES) {
+                timeout = bound((long) (HEADROOM * s.quiescence.upperEstimate()), MIN_PAGE_LOAD_TIMEOUT_MS,
+                        pageLoadTimeoutMs);
+            }
+        }
+
+        if (idle == maxInactivityTimeMs && timeout == pageLoadTimeoutMs) {
+            return configured;
+        }
+
+        LOG.debug("Adapted timeouts for {}: page load timeout {}ms, max idle time {}ms", host, timeout, idle);
+        adaptedTimeoutsTotal.inc();
+        return new Timeouts(timeout, idle);
+    }
+
+    /**
+     * Record a finished page load.
+     *
+     * @param host                  the host of the page
+     * @param timeToRootResponseMs  time until the root response was received, or negative if it never was
+     * @param timeToQuiescenceMs    time until the page was quiescent
+     * @param resourceCount         the number of resources requested by the page
+     * @param timedOut              true if the page load timed out
+     * @param configuredTimeoutMs   the configured page load timeout. Used as the sample for time to quiescence if the
+     *                              page timed out, so that a timeout pushes the adapted timeout up again
+     */
+    public void record(String host, long timeToRootResponseMs, long timeToQuiescenceMs, int resourceCount,
+                       boolean timedOut, long configuredTimeoutMs) {
+        if (timeToRootResponseMs >= 0) {
+            timeToRootResponse.observe(timeToRootResponseMs / 1000d);
+        }
+        if (!timedOut) {
+            timeToQuiescence.observe(timeToQuiescenceMs / 1000d);
+        }
+        pageResources.observe(resourceCount);
+
+        if (host == null) {
+            return;
+        }
+
+        synchronized (this) {
+            HostStats s = hosts.computeIfAbsent(host, h -> new HostStats());
+            if (timeToRootResponseMs >= 0) {
+                s.rootResponse.add(timeToRootResponseMs);
+            }
+            s.quiescence.add(timedOut ? configuredTimeoutMs : timeToQuiescenceMs);
+            if (timeToRootResponseMs >= 0 && !timedOut) {
+                s.activity.add(Math.max(0L, timeToQuiescenceMs - timeToRootResponseMs));
+            }
+            s.resources.add(resourceCount);
+            dirty = true;
+            trackedHosts.set(hosts.size());
+        }
+    }
+
+    private static long bound(long value, long min, long max) {
+        return Math.min(max, Math.max(min, value));
+    }
+
+    private synchronized void load() {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t");
+                // Files written before activity time was kept have 10 fields
+                if ((f.length != 10 && f.length != 13) || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    HostStats s = new HostStats();
+                    s.rootResponse.set(f, 1);
+                    s.quiescence.set(f, 4);
+                    s.resources.set(f, 7);
+                    if (f.length == 13) {
+                        s.activity.set(f, 10);
+                    }
+                    hosts.put(f[0], s);
+                } catch (NumberFormatException e) {
+                    LOG.debug("Skipping malformed line in {}: {}", file, line);
+                }
+            }
+            LOG.info("Loaded page load statistics for {} hosts from {}", hosts.size(), file);
+        } catch (NoSuchFileException e) {
+            LOG.info("No page load statistics found at {}", file);
+        } catch (IOException e) {
+            LOG.warn("Could not load page load statistics from {}", file, e);
+        }
+        trackedHosts.set(hosts.size());
+    }
+
+    /**
+     * Write the statistics to a temporary file and move it in place, so that a crash never leaves a partial file.
+     */
+    synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write("# host\trootResponseMean\trootResponseVar\trootResponseCount"
+                        + "\tquiescenceMean\tquiescenceVar\tquiescenceCount"
+                        + "\tresourcesMean\tresourcesVar\tresourcesCount"
+                        + "\tactivityMean\tactivityVar\tactivityCount\n");
+                for (Map.Entry<String, HostStats> e : hosts.entrySet()) {
+                    HostStats s = e.getValue();
+                    out.write(e.getKey() + '\t' + s.rootResponse + '\t' + s.quiescence + '\t' + s.resources
+                            + '\t' + s.activity + '\n');
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            LOG.warn("Could not save page load statistics to {}", file, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (saver != null) {
+            saver.shutdownNow();
+            save();
+        }
+    }
+
+    /**
+     * The timeouts to use for one page load.
+     */
+    public static final class Timeouts {
+        private final long pageLoadTimeoutMs;
+
+        private final long maxIdleTimeMs;
+
+        Timeouts(long pageLoadTimeoutMs, long maxIdleTimeMs) {
+            this.pageLoadTimeoutMs = pageLoadTimeoutMs;
+            this.maxIdleTimeMs = maxIdleTimeMs;
+        }
+
+        public long getPageLoadTimeoutMs() {
+            return pageLoadTimeoutMs;
+        }
+
+        public long getMaxIdleTimeMs() {
+            return maxIdleTimeMs;
+        }
+    }
+
+    private static final class HostStats {
+        final RollingStat rootResponse = new RollingStat();
+
+        final RollingStat quiescence = new RollingStat();
+
+        final RollingStat resources = new RollingStat();
+
+        /**
+         * Time from root response to quiescence, only for pages which did not time out.
+         */
+        final RollingStat activity = new RollingStat();
+    }
+
+    /**
+     * Exponentially weighted mean and variance.
+     */
+    private static final class RollingStat {
+        double mean;
+
+        double variance;
+
+        long count;
+
+        void add(double value) {
+            count++;
+            double alpha = Math.max(ALPHA, 1d / count);
+            double diff = value - mean;
+            double increment = alpha * diff;
+            mean += increment;
+            variance = (1 - alpha) * (variance + diff * increment);
+        }
+
+        double upperEstimate() {
+            return mean + 3 * Math.sqrt(variance);
+        }
+
+        void set(String[] fields, int offset) {
+            mean = Double.parseDouble(fields[offset]);
+            variance = Double.parseDouble(fields[offset + 1]);
+            count = Long.parseLong(fields[offset + 2]);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.1f\t%.1f\t%d", mean, variance, count);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.harvester.browsercontroller;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tears down browser sessions in the background.
+ * <p>
+ * Closing a session disconnects from the browser and waits for the connection's event loop to shut down, which can
+ * take seconds. By handing the session to the reaper, the proxy slot can be reused as soon as the page is done.
+ * A teardown which has not finished within the deadline is interrupted and logged. Disposing the connection waits
+ * interruptibly, so the interrupt ends the teardown. When all reaper threads are busy, or the reaper is closed,
+ * the session is closed on the calling thread, so teardowns can not pile up faster than they finish and no session
+ * is left open.
+ */
+public class SessionReaper implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionReaper.class);
+
+    private static final String METRICS_NS = "veidemann";
+
+    private static final String METRICS_SUBSYSTEM = "harvester";
+
+    private static final Gauge closingSessions = Gauge.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("closing_browser_sessions")
+            .help("Browser sessions being torn down in the background")
+            .register();
+
+    private static final Counter teardownTimeoutsTotal = Counter.build()
+            .namespace(METRICS_NS)
+            .subsystem(METRICS_SUBSYSTEM)
+            .name("session_teardown_timeouts_total")
+            .help("Total browser sessions which were not torn down within the deadline")
+            .register();
+
+    private final long deadlineMs;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledExecutorService watchdog;
+
+    /**
+     * Create a reaper.
+     *
+     * @param maxThreads max number of sessions torn down concurrently in the background
+     * @param deadlineMs max time for tearing down a session
+     */
+    public SessionReaper(int maxThreads, long deadlineMs) {
+        this.deadlineMs = deadlineMs;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, Math.max(1, maxThreads), 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "session-reaper-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                // Unlike CallerRunsPolicy, this also runs the teardown when the executor is shut down
+                (r, pool) -> r.run());
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-reaper-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Close a session in the background.
+     * <p>
+     * The page must already be stopped with {@link BrowserSession#stopPage(long)} and the session removed from the
+     * {@link no.nb.nna.veidemann.harvester.BrowserSessionRegistry}. Only disconnecting from the browser is left.
+     *
+     * @param session the session to close
+     */
+    public void reap(BrowserSession session) {
+        closingSessions.inc();
+        Future<?> teardown = executor.submit(() -> {
+            try {
+                session.close();
+            } catch (Exception e) {
+                LOG.warn("Failed closing browser session for proxy {}", session.getProxyId(), e);
+            } finally {
+                closingSessions.dec();
+            }
+        });
+        if (!teardown.isDone() && !watchdog.isShutdown()) {
+            try {
+                watchdog.schedule(() -> {
+                    if (!teardown.isDone()) {
+                        teardownTimeoutsTotal.inc();
+                        LOG.warn("Closing browser session for proxy {} did not finish within {}ms, interrupting",
+                                session.getProxyId(), deadlineMs);
+                        teardown.cancel(true);
+                    }
+                }, deadlineMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed meanwhile, close() interrupts teardowns which are still running
+            }
+        }
+    }
+
+    /**
+     * Wait for pending teardowns to finish, but no longer than the deadline.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(deadlineMs, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Browser sessions still closing at shutdown");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            watchdog.shutdownNow();
+        }
+    }
+}
@@ -27,11 +27,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
 
 /**
  *
@@ -52,13 +50,22 @@ public class UriRequest {
 
     private int statusCode;
 
-    private String referrer;
+    /**
+     * Completed when the referrer is known.
+     */
+    private final CompletableFuture<String> referrer = new CompletableFuture<>();
 
-    private String discoveryPath = null;
+    /**
+     * Completed when the discovery path is known. For child requests this is when the parent's path is known.
+     */
+    private final CompletableFuture<String> discoveryPath = new CompletableFuture<>();
 
     private UriRequest parent;
 
-    private List<UriRequest> children = new ArrayList<>();
+    /**
+     * Children are allocated on first use since most requests are leafs.
+     */
+    private List<UriRequest> children;
 
     private boolean renderable = false;
 
@@ -81,8 +88,18 @@ public class UriRequest {
 
     private boolean finished = false;
 
+    /**
+     * True from the request is added to a registry until it is finished or replaced by the request for its redirect.
+     */
+    private boolean inFlight = false;
+
     private CrawlLog crawlLog;
 
+    /**
+     * The registry keeping aggregates for this request, set when the request is added to it.
+     */
+    private UriRequestRegistry registry;
+
     /**
      * True if this request is for the top level request.
      * <p>
@@ -90,16 +107,14 @@ public class UriRequest {
      */
     private boolean rootResource = false;
 
-    private final Lock referrerLock = new ReentrantLock();
-    private final Lock discoveryPathLock = new ReentrantLock();
-    private final Condition noReferrer = referrerLock.newCondition();
-    private final Condition noDiscoveryPath = discoveryPathLock.newCondition();
-
     private UriRequest(String requestId, String method, String url, String referrer, ResourceType type, BaseSpan parentSpan) {
         this.requestId = requestId;
-        this.method = method;
+        // Only a handful of methods are in use, share one instance of each between requests
+        this.method = method == null ? null : method.intern();
         this.url = url;
-        this.referrer = referrer;
+        if (referrer != null) {
+            this.referrer.complete(referrer);
+        }
         this.resourceType = type;
 
         this.parentSpan = parentSpan;
@@ -120,14 +135,14 @@ public class UriRequest {
 
     public static UriRequest createRoot(NetworkDomain.RequestWillBeSent request, String initialDiscoveryPath, BaseSpan parentSpan) {
         UriRequest result = new UriRequest(request, parentSpan);
-        result.discoveryPath = initialDiscoveryPath;
+        result.setDiscoveryPath(initialDiscoveryPath);
         result.rootResource = true;
         return result;
     }
 
     public static UriRequest createRoot(String requestId, String method, String url, String referrer, ResourceType type, String initialDiscoveryPath, BaseSpan parentSpan) {
         UriRequest result = new UriRequest(requestId, method, url, referrer, type, parentSpan);
-        result.discoveryPath = initialDiscoveryPath;
+        result.setDiscoveryPath(initialDiscoveryPath);
         result.rootResource = true;
         return result;
     }
@@ -135,7 +150,7 @@ public class UriRequest {
     public static UriRequest create(String requestId, String method, String url, String referrer, ResourceType type, char discoveryType, UriRequest parent, BaseSpan parentSpan) {
         UriRequest result = new UriRequest(requestId, method, url, referrer, type, parentSpan);
         result.setParent(parent);
-        result.discoveryPath = parent.discoveryPath + discoveryType;
+        parent.discoveryPath.thenAccept(path -> result.setDiscoveryPath(path + discoveryType));
         return result;
     }
 
@@ -166,16 +181,20 @@ public class UriRequest {
     void addResponse(NetworkDomain.ResponseReceived response) {
         if (getMimeType() != null) {
             LOG.trace("Already got response, previous length: {}, new length: {}, Referrer: {}, DiscoveryPath: {}",
-                    this.responseSize, response.response().encodedDataLength(), referrer, discoveryPath);
+                    this.responseSize, response.response().encodedDataLength(), referrer.getNow(null), discoveryPath.getNow(null));
         }
 
         resourceType = ResourceType.forName(response.type());
         setMimeType(response.response().mimeType());
         statusCode = response.response().status().intValue();
-        setFromCache(response.response().fromDiskCache());
-
-        if (response.response().fromDiskCache() || response.response().protocol().equals("data")) {
-            setFromProxy(false);
+        synchronized (this) {
+            boolean wasDownloaded = isDownloaded();
+            long oldSize = size;
+            fromCache = response.response().fromDiskCache();
+            if (response.response().fromDiskCache() || response.response().protocol().equals("data")) {
+                fromProxy = false;
+            }
+            updateAggregates(wasDownloaded, oldSize);
         }
 
 //        if (!mimeTypeIsConsistentWithType(this)) {
@@ -215,62 +234,67 @@ public class UriRequest {
         return statusCode;
     }
 
+    /**
+     * Get the discovery path without waiting.
+     *
+     * @return the discovery path, or the empty string if it is not resolved yet
+     */
     public String getDiscoveryPath() {
-        discoveryPathLock.lock();
-        try {
-            if (discoveryPath == null) {
-                noDiscoveryPath.await(20, TimeUnit.SECONDS);
-            }
-            if (discoveryPath == null) {
-                LOG.error("Browser event for updating discovery path was not fired within the time limits");
-                throw new IllegalStateException("Browser event for updating discovery path was not fired within the time limits");
-            }
-            return discoveryPath;
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            discoveryPathLock.unlock();
-        }
+        return discoveryPath.getNow("");
+    }
+
+    /**
+     * Get a future which is completed with the discovery path when it is resolved.
+     *
+     * @return the future discovery path
+     */
+    public CompletableFuture<String> whenDiscoveryPathResolved() {
+        return discoveryPath.copy();
     }
 
     public void setDiscoveryPath(String discoveryPath) {
-        discoveryPathLock.lock();
-        try {
-            this.discoveryPath = discoveryPath;
-            noDiscoveryPath.signalAll();
-        } finally {
-            discoveryPathLock.unlock();
+        if (!this.discoveryPath.complete(discoveryPath)) {
+            this.discoveryPath.obtrudeValue(discoveryPath);
         }
     }
 
+    /**
+     * Get the referrer without waiting.
+     *
+     * @return the referrer, or the empty string if it is not resolved yet
+     */
     public String getReferrer() {
-        referrerLock.lock();
-        try {
-            if (referrer == null) {
-                noReferrer.await(20, TimeUnit.SECONDS);
-            }
-            if (referrer == null) {
-                LOG.error("Browser event for updating referrer was not fired within the time limits");
-                throw new IllegalStateException("Browser event for updating referrer was not fired within the time limits");
-            }
-            return referrer;
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            referrerLock.unlock();
-        }
+        return referrer.getNow("");
+    }
+
+    /**
+     * Get a future which is completed with the referrer when it is resolved.
+     *
+     * @return the future referrer
+     */
+    public CompletableFuture<String> whenReferrerResolved() {
+        return referrer.copy();
     }
 
     public void setReferrer(String referrer) {
-        referrerLock.lock();
-        try {
-            this.referrer = referrer;
-            noReferrer.signalAll();
-        } finally {
-            referrerLock.unlock();
+        if (!this.referrer.complete(referrer)) {
+            this.referrer.obtrudeValue(referrer);
         }
     }
 
+    /**
+     * Get a future which is completed when both referrer and discovery path are resolved.
+     *
+     * @return a future completed when this request is ready for the page log
+     */
+    public CompletableFuture<Void> whenResolved() {
+        return CompletableFuture.allOf(referrer, discoveryPath);
+    }
+
+    public boolean isResolved() {
+        return referrer.isDone() && discoveryPath.isDone();
+    }
+
     public UriRequest getParent() {
         return parent;
     }
@@ -283,11 +307,16 @@ public class UriRequest {
         }
         setReferrer(parent.url);
         this.parent = parent;
-        parent.children.add(this);
+        synchronized (parent) {
+            if (parent.children == null) {
+                parent.children = new ArrayList<>(2);
+            }
+            parent.children.add(this);
+        }
     }
 
     public List<UriRequest> getChildren() {
-        return children;
+        return children == null ? Collections.emptyList() : children;
     }
 
     public boolean isRenderable() {
@@ -302,24 +331,71 @@ public class UriRequest {
         return size;
     }
 
-    public void incrementSize(long size) {
+    public synchronized void incrementSize(long size) {
+        boolean wasDownloaded = isDownloaded();
+        long oldSize = this.size;
         this.size += size;
+        updateAggregates(wasDownloaded, oldSize);
     }
 
     public boolean isFromCache() {
         return fromCache;
     }
 
-    public void setFromCache(boolean fromCache) {
+    public synchronized void setFromCache(boolean fromCache) {
+        boolean wasDownloaded = isDownloaded();
         this.fromCache = fromCache;
+        updateAggregates(wasDownloaded, size);
     }
 
     public boolean isFromProxy() {
         return fromProxy;
     }
 
-    public void setFromProxy(boolean fromProxy) {
+    public synchronized void setFromProxy(boolean fromProxy) {
+        boolean wasDownloaded = isDownloaded();
         this.fromProxy = fromProxy;
+        updateAggregates(wasDownloaded, size);
+    }
+
+    /**
+     * Is this request's content downloaded from the origin server.
+     *
+     * @return true if the request counts towards downloaded bytes and uris for the page
+     */
+    public boolean isDownloaded() {
+        return !fromCache && fromProxy;
+    }
+
+    synchronized void setRegistry(UriRequestRegistry registry) {
+        this.registry = registry;
+        inFlight = true;
+        updateAggregates(false, 0L);
+    }
+
+    /**
+     * Mark this request as no longer in flight.
+     *
+     * @return true if the request was in flight
+     */
+    synchronized boolean leaveFlight() {
+        boolean wasInFlight = inFlight;
+        inFlight = false;
+        return wasInFlight;
+    }
+
+    /**
+     * Report changes to size or download status to the registry.
+     * <p>
+     * Must be called while holding the monitor of this request.
+     *
+     * @param wasDownloaded the value of {@link #isDownloaded()} before the change
+     * @param oldSize       the size before the change
+     */
+    private void updateAggregates(boolean wasDownloaded, long oldSize) {
+        if (registry != null) {
+            registry.updateAggregates(wasDownloaded, oldSize, isDownloaded(), size);
+        }
     }
 
     public String getWarcId() {
@@ -334,22 +410,25 @@ public class UriRequest {
         this.statusCode = statusCode;
     }
 
-    public CrawlLog setCrawlLog(CrawlLog.Builder crawlLogBuilder, boolean isFromCache) {
+    public synchronized CrawlLog setCrawlLog(CrawlLog.Builder crawlLogBuilder, boolean isFromCache) {
         // If request fails in client to proxy step, then status code is not set and we pick it up from the error
         if (crawlLogBuilder.getStatusCode() == 0) {
             crawlLogBuilder.setStatusCode(crawlLogBuilder.getError().getCode());
         }
 
         this.crawlLog = crawlLogBuilder
-                .setReferrer(referrer)
-                .setDiscoveryPath(discoveryPath)
+                .setReferrer(getReferrer())
+                .setDiscoveryPath(getDiscoveryPath())
                 .build();
         this.warcId = crawlLog.getWarcId();
+        boolean wasDownloaded = isDownloaded();
+        long oldSize = size;
         this.size = crawlLog.getSize();
-        setFromCache(isFromCache);
+        this.fromCache = isFromCache;
         if (this.crawlLog.getStatusCode() == ExtraStatusCodes.PRECLUDED_BY_ROBOTS.getCode()) {
-            setFromProxy(false);
+            this.fromProxy = false;
         }
+        updateAggregates(wasDownloaded, oldSize);
         return this.crawlLog;
     }
 
@@ -391,6 +470,9 @@ public class UriRequest {
             span.finish();
             LOG.debug("Request {} finished", requestId);
             finished = true;
+            if (registry != null) {
+                registry.requestDone(this);
+            }
             crawlLogRegistry.signalRequestsUpdated();
         }
     }
@@ -419,17 +501,17 @@ public class UriRequest {
         final StringBuffer sb = new StringBuffer(indent + "- UriRequest{");
         sb.append("rId='").append(requestId).append('\'');
         sb.append(", status=").append(statusCode);
-        sb.append(", path='").append(discoveryPath).append('\'');
+        sb.append(", path='").append(discoveryPath.getNow(null)).append('\'');
         sb.append(", renderable=").append(renderable);
         sb.append(", method='").append(method).append('\'');
         sb.append(", url='").append(url).append('\'');
-        sb.append(", referrer=").append(referrer);
+        sb.append(", referrer=").append(referrer.getNow(null));
         sb.append(", fromCache=").append(isFromCache());
         sb.append(", warcId=").append(warcId);
         if (crawlLog != null) {
             sb.append(", log=").append(crawlLog.getStatusCode() + "::" + crawlLog.getRequestedUri());
         }
-        if (!children.isEmpty()) {
+        if (children != null) {
             for (UriRequest c : children) {
                 sb.append("\n  ").append(indent).append(c.toString(indent + "  "));
             }
@@ -25,14 +25,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -50,6 +57,22 @@ public class UriRequestRegistry implements AutoCloseable, VeidemannHeaderConstan
 
     private final Map<String, UriRequest> requestsByRequestId = new HashMap<>();
 
+    /**
+     * All requests in the order they were added.
+     * <p>
+     * Append only. Writers hold {@link #allRequestsLock} and publish the array before the count, so readers can take a
+     * lock free snapshot by reading the count first.
+     */
+    private volatile UriRequest[] requests = new UriRequest[64];
+
+    private volatile int requestCount = 0;
+
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    private final AtomicInteger uriDownloadedCount = new AtomicInteger();
+
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
     /**
      * The request initializing the page load
      */
@@ -93,7 +116,22 @@ public class UriRequestRegistry implements AutoCloseable, VeidemannHeaderConstan
             if (pageRequest.isRootResource()) {
                 rootRequest = pageRequest;
             }
-            requestsByRequestId.put(pageRequest.getRequestId(), pageRequest);
+            UriRequest replaced = requestsByRequestId.put(pageRequest.getRequestId(), pageRequest);
+            if (replaced != null && replaced != pageRequest) {
+                // A redirect reuses the request id, and the browser never reports the redirected request as finished
+                requestDone(replaced);
+            }
+
+            int count = requestCount;
+            UriRequest[] current = requests;
+            if (count == current.length) {
+                current = Arrays.copyOf(current, count * 2);
+            }
+            current[count] = pageRequest;
+            requests = current;
+            requestCount = count + 1;
+            pageRequest.setRegistry(this);
+            inFlightCount.incrementAndGet();
 
             pageRequest.start();
             allRequestsUpdate.signalAll();
@@ -110,49 +148,113 @@ public class UriRequestRegistry implements AutoCloseable, VeidemannHeaderConstan
         return initialRequest;
     }
 
+    /**
+     * Get all requests in the order they were added.
+     *
+     * @return a stream over a snapshot of the requests
+     */
     public Stream<UriRequest> getRequestStream() {
-        Stream.Builder<UriRequest> streamBuilder = Stream.builder();
-        buildStream(initialRequest, streamBuilder);
-        return streamBuilder.build();
+        int count = requestCount;
+        return Arrays.stream(requests, 0, count);
     }
 
-    private void buildStream(UriRequest r, Stream.Builder<UriRequest> streamBuilder) {
-        if (r == null) {
-            return;
-        }
+    /**
+     * Get the number of requests which the browser has not yet reported as finished or failed.
+     * <p>
+     * A redirected request is replaced by the request for the redirect target, since they share request id.
+     * This does not take any locks, so it is safe to call while holding the {@link CrawlLogRegistry} lock.
+     *
+     * @return the number of requests in flight
+     */
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
 
-        streamBuilder.add(r);
-        for (UriRequest c : r.getChildren()) {
-            buildStream(c, streamBuilder);
+    /**
+     * Called when a request is finished, failed or replaced by a redirect.
+     */
+    void requestDone(UriRequest request) {
+        if (request.leaveFlight()) {
+            inFlightCount.decrementAndGet();
         }
     }
 
     public long getBytesDownloaded() {
-        return getRequestStream().filter(r -> (!r.isFromCache() && r.isFromProxy())).mapToLong(r -> r.getSize()).sum();
+        return bytesDownloaded.get();
     }
 
     public int getUriDownloadedCount() {
-        return (int) getRequestStream().filter(r -> (!r.isFromCache() && r.isFromProxy())).count();
+        return uriDownloadedCount.get();
     }
 
+    /**
+     * Called by requests when their size or download status changes.
+     */
+    void updateAggregates(boolean wasDownloaded, long oldSize, boolean downloaded, long newSize) {
+        if (wasDownloaded) {
+            bytesDownloaded.addAndGet(-oldSize);
+            uriDownloadedCount.decrementAndGet();
+        }
+        if (downloaded) {
+            bytesDownloaded.addAndGet(newSize);
+            uriDownloadedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get page log resources for the requests as they are now.
+     * <p>
+     * Referrers and discovery paths which are not resolved yet are empty.
+     *
+     * @return the page log resources
+     */
     public Stream<Resource> getPageLogResources() {
-        return getRequestStream()
-                .map(r -> {
-                    Resource.Builder b = Resource.newBuilder()
-                            .setUri(r.getUrl())
-                            .setFromCache(r.isFromCache())
-                            .setRenderable(r.isRenderable())
-                            .setMimeType(r.getMimeType())
-                            .setStatusCode(r.getStatusCode())
-                            .setDiscoveryPath(r.getDiscoveryPath())
-                            .setWarcId(r.getWarcId())
-                            .setReferrer(r.getReferrer());
-
-                    if (r.getResourceType() != null) {
-                        b.setResourceType(r.getResourceType().category.shortTitle + "/" + r.getResourceType().title);
-                    }
-                    return b.build();
-                });
+        return getRequestStream().map(this::toPageLogResource);
+    }
+
+    /**
+     * Get page log resources when referrer and discovery path are resolved for all requests.
+     * <p>
+     * If some requests are still unresolved when the deadline is reached, the resources are created with what is
+     * known at that time.
+     *
+     * @param deadlineMs maximum time to wait for requests to be resolved
+     * @return a future which is completed with the page log resources
+     */
+    public CompletableFuture<List<Resource>> getPageLogResources(long deadlineMs) {
+        final UriRequest[] snapshot = getRequestStream().toArray(UriRequest[]::new);
+        final CompletableFuture<?>[] resolved = Arrays.stream(snapshot)
+                .map(UriRequest::whenResolved)
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(resolved)
+                .completeOnTimeout(null, deadlineMs, TimeUnit.MILLISECONDS)
+                .thenApply(v -> Arrays.stream(snapshot)
+                        .peek(r -> {
+                            if (!r.isResolved()) {
+                                LOG.warn("Referrer or discovery path not resolved within {}ms for request {}",
+                                        deadlineMs, r.getRequestId());
+                            }
+                        })
+                        .map(this::toPageLogResource)
+                        .collect(Collectors.toList()));
+    }
+
+    private Resource toPageLogResource(UriRequest r) {
+        Resource.Builder b = Resource.newBuilder()
+                .setUri(r.getUrl())
+                .setFromCache(r.isFromCache())
+                .setRenderable(r.isRenderable())
+                .setMimeType(r.getMimeType())
+                .setStatusCode(r.getStatusCode())
+                .setDiscoveryPath(r.getDiscoveryPath())
+                .setWarcId(r.getWarcId())
+                .setReferrer(r.getReferrer());
+
+        if (r.getResourceType() != null) {
+            b.setResourceType(r.getResourceType().category.shortTitle + "/" + r.getResourceType().title);
+        }
+        return b.build();
     }
 
     public BaseSpan getPageSpan() {
@@ -261,6 +363,9 @@ public class UriRequestRegistry implements AutoCloseable, VeidemannHeaderConstan
                 crawlLogRegistry.signalActivity();
             } else {
                 request.addResponse(r);
+                if (request.isRootResource()) {
+                    crawlLogRegistry.signalRootResponse();
+                }
                 crawlLogRegistry.signalRequestsUpdated();
             }
         } finally {
@@ -57,6 +57,10 @@ public class Settings extends CommonSettings {
 
     private boolean headlessBrowser;
 
+    private long sessionTeardownDeadlineMs;
+
+    private boolean adaptiveTimeouts;
+
     public String getProxyHost() {
         return proxyHost;
     }
@@ -200,4 +204,20 @@ public class Settings extends CommonSettings {
     public void setHeadlessBrowser(boolean headlessBrowser) {
         this.headlessBrowser = headlessBrowser;
     }
+
+    public long getSessionTeardownDeadlineMs() {
+        return sessionTeardownDeadlineMs;
+    }
+
+    public void setSessionTeardownDeadlineMs(long sessionTeardownDeadlineMs) {
+        this.sessionTeardownDeadlineMs = sessionTeardownDeadlineMs;
+    }
+
+    public boolean isAdaptiveTimeouts() {
+        return adaptiveTimeouts;
+    }
+
+    public void setAdaptiveTimeouts(boolean adaptiveTimeouts) {
+        this.adaptiveTimeouts = adaptiveTimeouts;
+    }
 }
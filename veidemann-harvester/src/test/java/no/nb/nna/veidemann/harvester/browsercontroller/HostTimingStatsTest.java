@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.harvester.browsercontroller;
+
+import no.nb.nna.veidemann.harvester.browsercontroller.HostTimingStats.Timeouts;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HostTimingStatsTest {
+
+    private static final long PAGE_LOAD_TIMEOUT_MS = 60000L;
+
+    private static final long MAX_IDLE_TIME_MS = 5000L;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void usesConfiguredTimeoutsBelowMinSamples() {
+        HostTimingStats stats = new HostTimingStats(true);
+        record(stats, "example.com", HostTimingStats.MIN_SAMPLES - 1, 1000L, 3000L);
+
+        assertConfigured(stats.getTimeouts("example.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS));
+        assertConfigured(stats.getTimeouts("unknown.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS));
+        assertConfigured(stats.getTimeouts(null, PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS));
+    }
+
+    @Test
+    public void usesConfiguredTimeoutsWhenNotAdaptive() {
+        HostTimingStats stats = new HostTimingStats(false);
+        record(stats, "example.com", HostTimingStats.MIN_SAMPLES, 1000L, 3000L);
+
+        assertConfigured(stats.getTimeouts("example.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS));
+    }
+
+    @Test
+    public void idleTimeIsDerivedFromTimeBetweenRootResponseAndQuiescence() {
+        HostTimingStats stats = new HostTimingStats(true);
+        record(stats, "example.com", HostTimingStats.MIN_SAMPLES, 20000L, 21000L);
+
+        Timeouts timeouts = stats.getTimeouts("example.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS);
+        assertThat(timeouts.getMaxIdleTimeMs()).isEqualTo((long) (HostTimingStats.HEADROOM * 1000L));
+        assertThat(timeouts.getPageLoadTimeoutMs()).isEqualTo((long) (HostTimingStats.HEADROOM * 21000L));
+    }
+
+    @Test
+    public void timeoutsAreClampedToMinimums() {
+        HostTimingStats stats = new HostTimingStats(true);
+        record(stats, "example.com", HostTimingStats.MIN_SAMPLES, 1000L, 1100L);
+
+        Timeouts timeouts = stats.getTimeouts("example.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS);
+        assertThat(timeouts.getMaxIdleTimeMs()).isEqualTo(HostTimingStats.MIN_IDLE_TIME_MS);
+        assertThat(timeouts.getPageLoadTimeoutMs()).isEqualTo(HostTimingStats.MIN_PAGE_LOAD_TIMEOUT_MS);
+    }
+
+    @Test
+    public void timeoutsAreClampedToConfiguredMaximums() {
+        HostTimingStats stats = new HostTimingStats(true);
+        record(stats, "example.com", HostTimingStats.MIN_SAMPLES, 1000L, 50000L);
+
+        assertConfigured(stats.getTimeouts("example.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS));
+    }
+
+    @Test
+    public void timedOutPagesDoNotLowerTimeouts() {
+        HostTimingStats stats = new HostTimingStats(true);
+        for (int i = 0; i < HostTimingStats.MIN_SAMPLES; i++) {
+            stats.record("example.com", 1000L, 1100L, 10, true, PAGE_LOAD_TIMEOUT_MS);
+        }
+
+        assertConfigured(stats.getTimeouts("example.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS));
+    }
+
+    @Test
+    public void leastRecentlyUsedHostIsEvictedAtHostCap() {
+        HostTimingStats stats = new HostTimingStats(true);
+        record(stats, "evicted.com", HostTimingStats.MIN_SAMPLES, 1000L, 1100L);
+        record(stats, "kept.com", HostTimingStats.MIN_SAMPLES, 1000L, 1100L);
+        stats.getTimeouts("kept.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS);
+        stats.record("kept.com", 1000L, 1100L, 10, false, PAGE_LOAD_TIMEOUT_MS);
+
+        for (int i = 0; i < HostTimingStats.MAX_HOSTS - 1; i++) {
+            stats.record("host" + i + ".com", 1000L, 1100L, 10, false, PAGE_LOAD_TIMEOUT_MS);
+        }
+
+        assertConfigured(stats.getTimeouts("evicted.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS));
+        assertThat(stats.getTimeouts("kept.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS).getMaxIdleTimeMs())
+                .isEqualTo(HostTimingStats.MIN_IDLE_TIME_MS);
+    }
+
+    @Test
+    public void statisticsAreLoadedAfterSave() throws Exception {
+        Path file = tmp.getRoot().toPath().resolve("stats.tsv");
+        try (HostTimingStats stats = new HostTimingStats(file, true)) {
+            record(stats, "example.com", HostTimingStats.MIN_SAMPLES, 20000L, 21000L);
+            record(stats, "few.com", HostTimingStats.MIN_SAMPLES - 1, 20000L, 21000L);
+        }
+        assertThat(file).exists();
+        assertThat(file.resolveSibling("stats.tsv.tmp")).doesNotExist();
+
+        try (HostTimingStats stats = new HostTimingStats(file, true)) {
+            Timeouts timeouts = stats.getTimeouts("example.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS);
+            assertThat(timeouts.getMaxIdleTimeMs()).isEqualTo((long) (HostTimingStats.HEADROOM * 1000L));
+            assertThat(timeouts.getPageLoadTimeoutMs()).isEqualTo((long) (HostTimingStats.HEADROOM * 21000L));
+            assertConfigured(stats.getTimeouts("few.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS));
+        }
+    }
+
+    @Test
+    public void statisticsWithoutActivityTimeAreLoaded() throws Exception {
+        Path file = tmp.getRoot().toPath().resolve("stats.tsv");
+        Files.write(file, Collections.singletonList("example.com\t1000.0\t0.0\t5\t3000.0\t0.0\t5\t10.0\t0.0\t5"),
+                StandardCharsets.UTF_8);
+
+        try (HostTimingStats stats = new HostTimingStats(file, true)) {
+            Timeouts timeouts = stats.getTimeouts("example.com", PAGE_LOAD_TIMEOUT_MS, MAX_IDLE_TIME_MS);
+            assertThat(timeouts.getMaxIdleTimeMs()).isEqualTo(MAX_IDLE_TIME_MS);
+            assertThat(timeouts.getPageLoadTimeoutMs()).isEqualTo(HostTimingStats.MIN_PAGE_LOAD_TIMEOUT_MS);
+        }
+    }
+
+    private static void record(HostTimingStats stats, String host, int samples, long rootResponseMs,
+                               long quiescenceMs) {
+        for (int i = 0; i < samples; i++) {
+            stats.record(host, rootResponseMs, quiescenceMs, 10, false, PAGE_LOAD_TIMEOUT_MS);
+        }
+    }
+
+    private static void assertConfigured(Timeouts timeouts) {
+        assertThat(timeouts.getPageLoadTimeoutMs()).isEqualTo(PAGE_LOAD_TIMEOUT_MS);
+        assertThat(timeouts.getMaxIdleTimeMs()).isEqualTo(MAX_IDLE_TIME_MS);
+    }
+}
@@ -59,14 +59,33 @@ public class WarcFile {
     }
 
     public Stream<WarcRecord> getContent() {
-        HttpUrl url = WarcInspector.WARC_SERVER_URL.resolve("warcs/" + name);
+        return getContent(WarcInspector.WARC_SERVER_URL.resolve("warcs/" + name));
+    }
+
+    /**
+     * Get the records of a WARC type, filtered by the server.
+     *
+     * @param warcTypes the WARC-Types to get
+     * @return a stream of the matching records
+     */
+    public Stream<WarcRecord> getContent(String... warcTypes) {
+        HttpUrl.Builder url = WarcInspector.WARC_SERVER_URL.newBuilder()
+                .addPathSegment("warcs")
+                .addPathSegment(name)
+                .addPathSegment("export");
+        for (String type : warcTypes) {
+            url.addQueryParameter("type", type);
+        }
+        return getContent(url.build());
+    }
+
+    private Stream<WarcRecord> getContent(HttpUrl url) {
         Request request = new Request.Builder().url(url).build();
         try {
             Response response = WarcInspector.CLIENT.newCall(request).execute();
             if (response.isSuccessful()) {
+                // Digests are verified by the server, see WarcInspector.validateWarcFiles
                 WarcReader warcReader = WarcReaderFactory.getReader(response.body().byteStream());
-                warcReader.setBlockDigestEnabled(true);
-                warcReader.setPayloadDigestEnabled(true);
                 return StreamSupport.stream(Spliterators.spliteratorUnknownSize(warcReader.iterator(), 0), false)
                         .onClose(() -> {
                             warcReader.close();
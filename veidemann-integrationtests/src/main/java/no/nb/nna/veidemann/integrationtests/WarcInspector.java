@@ -18,12 +18,13 @@ package no.nb.nna.veidemann.integrationtests;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
-import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import com.google.common.net.HttpHeaders;
 import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -59,9 +60,40 @@ public class WarcInspector {
     }
 
     public static WarcFileSet getWarcFiles(String regex) throws UncheckedIOException {
-        Pattern fileMatcher = Pattern.compile(regex);
+        HttpUrl.Builder url = WARC_SERVER_URL.newBuilder().addPathSegment("warcs");
+        if (regex != null) {
+            // Filtering is done by the server
+            url.addQueryParameter("match", regex);
+        }
 
-        HttpUrl url = WARC_SERVER_URL.resolve("warcs");
+        Request request = new Request.Builder()
+                .url(url.build())
+                .header(HttpHeaders.ACCEPT, "application/json")
+                .build();
+
+        try (Response response = CLIENT.newCall(request).execute();) {
+            if (response.isSuccessful()) {
+                Stream warcFileStream = GSON.fromJson(response.body().charStream(), List.class).stream();
+                return new WarcFileSet(warcFileStream.map(WarcFile::new));
+            } else {
+                throw new IOException("Unexpected code " + response);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Validate WARC files and verify their digests on the server.
+     *
+     * @param regex regular expression matching the names of the files to validate
+     * @return one report per file, with the fields 'fileName', 'valid', 'errors' and 'invalidRecords'
+     */
+    public static List<Map<String, Object>> validateWarcFiles(String regex) throws UncheckedIOException {
+        HttpUrl url = WARC_SERVER_URL.newBuilder()
+                .addPathSegment("validate")
+                .addQueryParameter("match", regex)
+                .build();
 
         Request request = new Request.Builder()
                 .url(url)
@@ -70,17 +102,8 @@ public class WarcInspector {
 
         try (Response response = CLIENT.newCall(request).execute();) {
             if (response.isSuccessful()) {
-                Stream warcFileStream = GSON.fromJson(response.body().charStream(), List.class).stream();
-                return new WarcFileSet(warcFileStream
-                        .map(WarcFile::new)
-                        .filter(wf -> {
-                            if (fileMatcher == null) {
-                                return true;
-                            } else {
-                                return fileMatcher.matcher(((WarcFile) wf).getName()).matches();
-                            }
-                        })
-                );
+                return GSON.fromJson(response.body().charStream(), new TypeToken<List<Map<String, Object>>>() {
+                }.getType());
             } else {
                 throw new IOException("Unexpected code " + response);
             }
@@ -53,6 +53,8 @@ public class CrawlExecutionValidator {
     List<PageLog> pageLogs = new ArrayList<>();
     Map<String, WarcRecord> warcRecords;
     Map<String, WarcRecord> warcScreenshotRecords;
+    String warcRegex;
+    String warcScreenshotRegex;
 
     final JobExecutionStatus jobExecutionStatus;
 
@@ -71,6 +73,7 @@ public class CrawlExecutionValidator {
         checkDrainedQueue();
         checkConsistency();
         checkValidWarc();
+        checkExportFilter();
         checkChecksum();
         checkIp();
 
@@ -342,6 +345,17 @@ public class CrawlExecutionValidator {
     }
 
     private void checkValidWarc() {
+        Stream.of(warcRegex, warcScreenshotRegex)
+                .flatMap(regex -> WarcInspector.validateWarcFiles(regex).stream())
+                .forEach(report -> {
+                    System.out.println("Validated WARC file: " + report.get("fileName") + ", records: "
+                            + report.get("records") + ", bytes/s: " + report.get("bytesPerSecond"));
+                    assertThat((Boolean) report.get("valid"))
+                            .as("WARC file %s is not valid. Errors: %s, invalid records: %s",
+                                    report.get("fileName"), report.get("errors"), report.get("invalidRecords"))
+                            .isTrue();
+                });
+
         warcRecords.values().forEach(r -> {
             if (!r.isCompliant()) {
                 HttpHeader p = r.getHttpHeader();
@@ -412,7 +426,7 @@ public class CrawlExecutionValidator {
         crawlExecutions = new CrawlExecutionsHelper(jobExecutionStatus.getId());
 
         warcRecords = new HashMap<>();
-        String warcRegex = collection.getMeta().getName() + "((-)|(_dns)).*\\.warc.*";
+        warcRegex = collection.getMeta().getName() + "((-)|(_dns)).*\\.warc.*";
         WarcInspector.getWarcFiles(warcRegex).listFiles().forEach(f -> System.out.println("Warc file: " + f.getName() + ", size: " + f.getSize()));
         WarcInspector.getWarcFiles(warcRegex).getRecordStream()
                 .forEach(w -> {
@@ -429,7 +443,7 @@ public class CrawlExecutionValidator {
                             .isNull();
                 });
         warcScreenshotRecords = new HashMap<>();
-        String warcScreenshotRegex = collection.getMeta().getName() + "_screenshot.*\\.warc.*";
+        warcScreenshotRegex = collection.getMeta().getName() + "_screenshot.*\\.warc.*";
         WarcInspector.getWarcFiles(warcScreenshotRegex).listFiles().forEach(f -> System.out.println("Warc file: " + f.getName() + ", size: " + f.getSize()));
         WarcInspector.getWarcFiles(warcScreenshotRegex).getRecordStream()
                 .forEach(w -> {
@@ -447,6 +461,27 @@ public class CrawlExecutionValidator {
                 });
     }
 
+    /**
+     * Check that exporting records filtered by type returns the same records as reading the whole files.
+     */
+    private void checkExportFilter() {
+        String[] expected = warcRecords.values().stream()
+                .filter(r -> "response".equals(r.header.warcTypeStr) || "revisit".equals(r.header.warcTypeStr))
+                .map(r -> r.header.warcRecordIdStr)
+                .toArray(String[]::new);
+        List<String> exported = new ArrayList<>();
+        WarcInspector.getWarcFiles(warcRegex).listFiles().forEach(f -> {
+            Stream<WarcRecord> records = f.getContent("response", "revisit");
+            assertThat(records).as("Export of WARC file %s failed", f.getName()).isNotNull();
+            try (Stream<WarcRecord> s = records) {
+                s.forEach(r -> exported.add(r.header.warcRecordIdStr));
+            }
+        });
+        assertThat(exported)
+                .as("Records exported with type filter")
+                .containsExactlyInAnyOrder(expected);
+    }
+
     private String stripWarcId(String warcUrn) {
         if (warcUrn == null || warcUrn.isEmpty()) {
             return "";